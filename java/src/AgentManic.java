@@ -10,6 +10,22 @@ public class AgentManic implements IAgent {
 	public double[] actions;
 	public double[] beliefs;
 	public double[] anticipatedBeliefs;
+	public boolean singlePrecision; // If true, reset() makes models that store their weights and training buffers as floats
+	public boolean backgroundTransitionTraining; // If true, reset() makes a transition model that trains on a background thread
+	public boolean backgroundObservationTraining; // If true, reset() makes an observation model that trains its autoencoder on a background thread
+	public boolean incrementalObservationValidation; // If true, reset() makes an observation model that spreads its validation check across its training steps
+	public int planningIslands; // If > 1, reset() makes a genetic planner that refines this many sub-populations of plans in parallel
+	public int gradientPlanIters; // If > 0, reset() makes a genetic planner that polishes its best plan with this many gradient steps per time step
+	public long planningBudget; // If > 0, reset() makes a planner that refines plans for this many nanoseconds per time step, instead of a fixed number of iterations
+	public int planningPatience; // If > 0, reset() makes a planner that stops refining after this many tournaments without improvement
+	public boolean asyncMentor; // If true, reset() makes a planner that lets the mentor evaluate plans on another thread, and learns from its feedback when it arrives
+	public boolean coalescedContentmentTraining; // If true, reset() makes a planner that trains the contentment model once per step on all of the mentor's feedback
+	public int contentmentBatchSize; // If > 1, reset() makes a contentment model that trains on minibatches of this many samples
+	public double calibrationTolerance; // If > 0, reset() makes an observation model that stops calibrating beliefs when the reconstruction error improves by less than this
+	public boolean adaptiveCalibration; // If true, reset() makes an observation model that adapts its calibration step size
+	public double encoderCalibrationWeight; // If > 0, reset() makes an observation model that starts calibration from this blend of the encoder's beliefs and the anticipated beliefs, then refines only briefly
+	public boolean samplingPlanner; // If true, reset() makes a cross-entropy planner that samples whole batches of plans instead of breeding them (so planningIslands and gradientPlanIters must not be set)
+	public double regularizationTolerance; // If > 0, reset() makes models that defer regularization until this much shrinkage accumulates
 
 
 	// General-purpose constructor.
@@ -28,12 +44,21 @@ public class AgentManic implements IAgent {
 	public void reset(IMentor mentor, int observationDims, int beliefDims, int actionDims, int maxPlanLength) {
 		if(beliefDims > observationDims)
 			throw new IllegalArgumentException("Expected beliefDims to be <= observationDims");
+		if(samplingPlanner && (planningIslands > 1 || gradientPlanIters > 0))
+			throw new IllegalArgumentException("planningIslands and gradientPlanIters only apply to the genetic planner, not the sampling planner");
+		if(transitionModel != null)
+			transitionModel.stopBackgroundTraining();
+		if(observationModel != null)
+			observationModel.stopBackgroundTraining();
+		if(planningSystem != null)
+			planningSystem.close();
 		transitionModel = new TransitionModel(
 			actionDims + beliefDims,
 			beliefDims,
 			2, // number of layers in the transition model
 			500, // size of short term memory for transitions
 			1000, // number of training iterations to perform with each new sample
+			singlePrecision,
 			rand);
 		observationModel = new ObservationModel(
 			transitionModel,
@@ -44,27 +69,70 @@ public class AgentManic implements IAgent {
 			500, // size of short term memory for observations
 			50, // number of training iterations to perform with each new sample
 			500, // number of iterations to calibrate beliefs to correspond with observations
+			singlePrecision,
 			rand);
 		contentmentModel = new ContentmentModel(
 			beliefDims,
 			2, // number of layers in the contentment model
 			500, // size of short term memory for feedback from the mentor
 			50, // number of training iterations to perform with each new sample
+			singlePrecision,
 			rand);
-		planningSystem = new PlanningSystem(
-			this,
-			transitionModel,
-			observationModel,
-			contentmentModel,
-			mentor,
-			actionDims,
-			30, // population size
-			50, // number of iterations to refine each member of the population per time step
-			500, // burn-in iterations (the number of times at the start to just pick a random action, so the transition function has a chance to explore its space)
-			maxPlanLength,
-			0.99, // discount factor (to make short plans be preferred over long plans that ultimately arrive at nearly the same state)
-			0.0, // exploration rate (the probability that the agent will choose a random action, just to see what happens)
-			rand);
+		if(samplingPlanner) {
+			planningSystem = new CemPlanningSystem(
+				this,
+				transitionModel,
+				observationModel,
+				contentmentModel,
+				mentor,
+				actionDims,
+				30, // population size (the number of plans sampled per iteration)
+				25, // number of sample-and-refit iterations per time step
+				500, // burn-in iterations
+				maxPlanLength,
+				0.99, // discount factor
+				0.0, // exploration rate
+				rand);
+		}
+		else {
+			planningSystem = new PlanningSystem(
+				this,
+				transitionModel,
+				observationModel,
+				contentmentModel,
+				mentor,
+				actionDims,
+				30, // population size
+				50, // number of iterations to refine each member of the population per time step
+				500, // burn-in iterations (the number of times at the start to just pick a random action, so the transition function has a chance to explore its space)
+				maxPlanLength,
+				0.99, // discount factor (to make short plans be preferred over long plans that ultimately arrive at nearly the same state)
+				0.0, // exploration rate (the probability that the agent will choose a random action, just to see what happens)
+				rand);
+		}
+		if(regularizationTolerance > 0.0) {
+			transitionModel.model.setRegularizationTolerance(regularizationTolerance);
+			contentmentModel.model.setRegularizationTolerance(regularizationTolerance);
+			observationModel.decoderExperimental.setRegularizationTolerance(regularizationTolerance);
+			observationModel.encoderExperimental.setRegularizationTolerance(regularizationTolerance);
+		}
+		if(backgroundTransitionTraining)
+			transitionModel.startBackgroundTraining();
+		if(backgroundObservationTraining)
+			observationModel.startBackgroundTraining();
+		if(planningIslands > 1)
+			planningSystem.islands = planningIslands;
+		planningSystem.gradientIters = gradientPlanIters;
+		planningSystem.refinementBudget = planningBudget;
+		planningSystem.convergencePatience = planningPatience;
+		planningSystem.asyncMentor = asyncMentor;
+		planningSystem.coalesceFeedback = coalescedContentmentTraining;
+		observationModel.calibrationTolerance = calibrationTolerance;
+		observationModel.adaptiveCalibration = adaptiveCalibration;
+		observationModel.encoderSeedWeight = encoderCalibrationWeight;
+		observationModel.incrementalValidation = incrementalObservationValidation;
+		if(contentmentBatchSize > 1)
+			contentmentModel.batchSize = contentmentBatchSize;
 		actions = new double[actionDims];
 		beliefs = new double[beliefDims];
 		anticipatedBeliefs = new double[beliefDims];
@@ -78,7 +146,7 @@ public class AgentManic implements IAgent {
 		transitionModel = new TransitionModel(obj.get("transition"), r);
 		observationModel = new ObservationModel(transitionModel, obj.get("observation"), r);
 		contentmentModel = new ContentmentModel(obj.get("contentment"), r);
-		planningSystem = new PlanningSystem(obj.get("planning"), this, r, transitionModel, observationModel, contentmentModel, mentor);
+		planningSystem = PlanningSystem.unmarshal(obj.get("planning"), this, r, transitionModel, observationModel, contentmentModel, mentor);
 		actions = new double[transitionModel.actionDims()];
 		beliefs = Vec.unmarshal(obj.get("beliefs"));
 		anticipatedBeliefs = new double[beliefs.length];
@@ -123,6 +191,9 @@ public class AgentManic implements IAgent {
 	/// Learns from observations
 	void learnFromExperience(double[] observations) {
 
+		// Pick up a newly promoted encoder and decoder, if the observation model is trained in the background
+		observationModel.syncBackgroundTraining();
+
 		// Learn to perceive the world a little better
 		observationModel.trainIncremental(observations);
 
@@ -132,6 +203,12 @@ public class AgentManic implements IAgent {
 		// Learn to anticipate consequences a little better
 		if(beliefs[0] != IMentor.NO_FEEDBACK)
 			transitionModel.trainIncremental(beliefs, actions, anticipatedBeliefs);
+
+		// Pick up the latest weights, if the transition model is trained in the background
+		transitionModel.syncBackgroundTraining();
+
+		// Learn from whatever feedback the mentor has finished, if it evaluates plans asynchronously
+		planningSystem.applyMentorFeedback(false);
 	}
 
 
@@ -161,11 +238,10 @@ public class AgentManic implements IAgent {
 
 
 	/// Anticipates what this agent will observe if the specified plan is performed.
+	/// (While the planner is consulting the mentor, this reuses the planner's rollouts.)
 	public double[] anticipateObservation(Matrix plan)
 	{
-		double[] anticipatedBeliefs = transitionModel.getFinalBeliefs(beliefs, plan);
-		double[] anticipatedObs = observationModel.beliefsToObservations(anticipatedBeliefs);
-		return anticipatedObs;
+		return planningSystem.anticipateObservation(beliefs, plan);
 	}
 
 
@@ -183,29 +259,33 @@ public class AgentManic implements IAgent {
 		return decideWhatToDo();
 	}
 
-/*
-	public static void testMarshaling() throws Exception {
-		// Make an agent
-		AgentManic agent = new AgentManic(
-			new Random(1234),
-			new MyMentor(),
-			8, // observation dims
-			3, // belief dims
-			2, // action dims
-			10); // max plan length
-
-		// Write it to a file
-		JSONObject obj = agent.marshal();
-		FileWriter file = new FileWriter("test.json");
-		file.write(obj.toJSONString());
-		file.close();
-
-		// Read it from a file
-		JSONParser parser = new JSONParser();
-		JSONObject obj2 = (JSONObject)parser.parse(new FileReader("test.json"));
-		AgentManic agent2 = new AgentManic(obj2, new Random(1234), new MyMentor());
-
+	/// Checks that agents (in both double and single precision) survive a round trip through JSON
+	public static void testMarshaling() {
+		for(int p = 0; p < 2; p++) {
+			// Make an agent and give it some experience
+			AgentManic agent = new AgentManic(new Random(1234));
+			agent.singlePrecision = (p == 1);
+			IMentor mentor = PlanningSystem.newTestMentor();
+			agent.reset(mentor,
+				8, // observation dims
+				3, // belief dims
+				2, // action dims
+				10); // max plan length
+			Random r = new Random(0);
+			double[] obs = new double[8];
+			for(int i = 0; i < 5; i++) {
+				for(int j = 0; j < obs.length; j++)
+					obs[j] = r.nextDouble() * 2.0 - 1.0;
+				agent.think(obs);
+			}
+
+			// Round-trip it through a JSON string
+			String s1 = agent.marshal().toString();
+			AgentManic agent2 = new AgentManic(Json.parse(s1), new Random(1234), mentor);
+			String s2 = agent2.marshal().toString();
+			if(!s1.equals(s2))
+				throw new IllegalArgumentException("failed");
+		}
 		System.out.println("passed");
 	}
-*/
 }
@@ -0,0 +1,232 @@
+import java.util.Random;
+
+
+/// A planner that uses the cross-entropy method (or MPPI, if temperature > 0) instead of a genetic algorithm.
+/// Each iteration samples a whole population of fixed-length action sequences from a Gaussian, evaluates
+/// them all with one batched rollout, and refits the Gaussian to the best of them. The fixed batch shape
+/// makes each iteration one big batched evaluation instead of many small tournaments.
+public class CemPlanningSystem extends PlanningSystem {
+	double[] mean; // the mean of the sampling distribution, one action vector per step
+	double[] dev; // the standard deviation of the sampling distribution
+	public int iters; // the number of sample-and-refit iterations per time step
+	public int eliteCount; // the number of best samples that the distribution is refit to (CEM only)
+	public double temperature; // if > 0, refit to all samples, weighted by exp(fitness / temperature) (MPPI)
+	public double smoothing; // the fraction of the refit distribution that replaces the old one
+	public double initialDeviation;
+	public double minDeviation;
+	int[] order; // plan indexes, sorted by fitness
+	double[] sampleBuf;
+	double[] weights;
+
+
+	// General-purpose constructor
+	CemPlanningSystem(IAgent agent, TransitionModel transition, ObservationModel observation, ContentmentModel contentment, IMentor _mentor,
+		int actionDimensions, int populationSize, int sampleIters, int burnInIters, int maxPlanLen, double discount, double explore, Random r) {
+		super(agent, transition, observation, contentment, _mentor, actionDimensions, populationSize, 1, burnInIters, maxPlanLen, discount, explore, r);
+		iters = sampleIters;
+		eliteCount = Math.max(2, populationSize / 5);
+		temperature = 0.0;
+		smoothing = 0.7;
+		initialDeviation = 0.3;
+		minDeviation = 0.02;
+		mean = new double[maxPlanLength * actionDims];
+		dev = new double[maxPlanLength * actionDims];
+		Vec.setAll(mean, 0.5);
+		Vec.setAll(dev, initialDeviation);
+		initBuffers();
+	}
+
+
+	/// Unmarshaling constructor
+	CemPlanningSystem(Json obj, IAgent agent, Random r, TransitionModel transition, ObservationModel observation, ContentmentModel contentment, IMentor _mentor) {
+		super(obj, agent, r, transition, observation, contentment, _mentor);
+		iters = (int)obj.getLong("iters");
+		eliteCount = (int)obj.getLong("eliteCount");
+		temperature = obj.getDouble("temperature");
+		smoothing = obj.getDouble("smoothing");
+		initialDeviation = obj.getDouble("initialDeviation");
+		minDeviation = obj.getDouble("minDeviation");
+		mean = Vec.unmarshal(obj.get("mean"));
+		dev = Vec.unmarshal(obj.get("dev"));
+		initBuffers();
+	}
+
+
+	void initBuffers() {
+		order = new int[plans.size()];
+		sampleBuf = new double[maxPlanLength * actionDims];
+		weights = new double[plans.size()];
+	}
+
+
+	/// Marshals this model to a JSON DOM.
+	Json marshal() {
+		Json obj = super.marshal();
+		obj.add("planner", "cem");
+		obj.add("iters", iters);
+		obj.add("eliteCount", eliteCount);
+		obj.add("temperature", temperature);
+		obj.add("smoothing", smoothing);
+		obj.add("initialDeviation", initialDeviation);
+		obj.add("minDeviation", minDeviation);
+		obj.add("mean", Vec.marshal(mean));
+		obj.add("dev", Vec.marshal(dev));
+		return obj;
+	}
+
+
+	/// Samples, evaluates, and refits the distribution several times.
+	/// (refinementBudget and convergencePatience apply to the sample-and-refit iterations.)
+	void refinePlans(double[] beliefs) {
+
+		// If we are still burning in, then the models are probably not even reliable enough to make refining plans worthwhile
+		if(burnIn > 0)
+			return;
+
+		int n = plans.size();
+		int len = maxPlanLength * actionDims;
+		validateFitnessCache(beliefs);
+		deadline = clock.getAsLong() + refinementBudget;
+		double bestSeen = Double.NEGATIVE_INFINITY;
+		int stale = 0;
+		int maxIters = (refinementBudget > 0 ? Integer.MAX_VALUE : iters);
+		int k = 0;
+		for(; k < maxIters; k++) {
+			if(pastDeadline() || (convergencePatience > 0 && stale >= convergencePatience))
+				break;
+
+			// Keep the best plan so far in slot 0, put the mean in slot 1, and fill the rest with samples
+			int best = 0;
+			for(int i = 1; i < n; i++) {
+				if(!(fitness[i] <= fitness[best]))
+					best = i;
+			}
+			plans.copy(0, best);
+			fitness[0] = fitness[best];
+			plans.setPlan(1, mean, maxPlanLength);
+			fitness[1] = Double.NaN;
+			for(int i = 2; i < n; i++) {
+				for(int j = 0; j < len; j++)
+					sampleBuf[j] = Math.max(0.0, Math.min(1.0, mean[j] + dev[j] * rand.nextGaussian()));
+				plans.setPlan(i, sampleBuf, maxPlanLength);
+				fitness[i] = Double.NaN;
+			}
+
+			// Evaluate all of the new samples in one batch
+			evaluateStalePlans(beliefs);
+
+			// Refit the distribution
+			refit();
+			double top = Double.NEGATIVE_INFINITY;
+			for(int i = 0; i < n; i++)
+				top = Math.max(top, fitness[i]);
+			if(top > bestSeen) {
+				bestSeen = top;
+				stale = 0;
+			}
+			else
+				stale++;
+		}
+		lastRefinementIters = k;
+	}
+
+
+	/// Refits the mean and deviation to the elite samples (CEM), or to all samples weighted by fitness (MPPI)
+	void refit() {
+		int n = plans.size();
+		Vec.setAll(weights, 0.0);
+		if(temperature > 0.0) {
+			double top = -Double.MAX_VALUE;
+			for(int i = 0; i < n; i++)
+				top = Math.max(top, fitness[i]);
+			for(int i = 0; i < n; i++)
+				weights[i] = Math.exp((fitness[i] - top) / temperature);
+		}
+		else {
+			// Sort the plan indexes by fitness (insertion sort, because populations are small)
+			for(int i = 0; i < n; i++) {
+				int j = i;
+				for(; j > 0 && fitness[order[j - 1]] < fitness[i]; j--)
+					order[j] = order[j - 1];
+				order[j] = i;
+			}
+			for(int i = 0; i < Math.min(eliteCount, n); i++)
+				weights[order[i]] = 1.0;
+		}
+		double sum = 0.0;
+		for(int i = 0; i < n; i++)
+			sum += weights[i];
+		for(int t = 0; t < maxPlanLength; t++) {
+			for(int d = 0; d < actionDims; d++) {
+				int j = t * actionDims + d;
+				double m = 0.0;
+				for(int i = 0; i < n; i++) {
+					if(weights[i] > 0.0 && t < plans.length(i))
+						m += weights[i] * plans.get(i, t, d);
+					else if(weights[i] > 0.0)
+						m += weights[i] * mean[j];
+				}
+				m /= sum;
+				double v = 0.0;
+				for(int i = 0; i < n; i++) {
+					if(weights[i] > 0.0) {
+						double a = (t < plans.length(i) ? plans.get(i, t, d) : mean[j]) - m;
+						v += weights[i] * a * a;
+					}
+				}
+				v /= sum;
+				mean[j] = smoothing * m + (1.0 - smoothing) * mean[j];
+				dev[j] = Math.max(minDeviation, smoothing * Math.sqrt(v) + (1.0 - smoothing) * dev[j]);
+			}
+		}
+	}
+
+
+	/// Drops the first action in every plan, and shifts the distribution forward by one step
+	void advanceTime() {
+		super.advanceTime();
+		int last = (maxPlanLength - 1) * actionDims;
+		System.arraycopy(mean, actionDims, mean, 0, last);
+		System.arraycopy(dev, actionDims, dev, 0, last);
+		for(int d = 0; d < actionDims; d++) {
+			mean[last + d] = 0.5;
+			dev[last + d] = initialDeviation;
+		}
+	}
+
+
+	/// Checks that the sampling planner runs, keeps its fitness cache exact, and survives a round trip through JSON
+	public static void test() {
+		for(int p = 0; p < 2; p++) {
+			AgentManic agent = new AgentManic(new Random(1234));
+			agent.samplingPlanner = true;
+			IMentor mentor = newTestMentor();
+			startTestAgent(agent, mentor, 0);
+			CemPlanningSystem ps = (CemPlanningSystem)agent.planningSystem;
+			ps.burnIn = 0;
+			if(p == 1)
+				ps.temperature = 0.1;
+			thinkAboutRandomObservations(agent, new Random(0), 5);
+			ps.refinePlans(agent.beliefs);
+			for(int i = 0; i < ps.plans.size(); i++) {
+				if(ps.fitness[i] != ps.evaluatePlan(agent.beliefs, ps.plans.toMatrix(i)))
+					throw new IllegalArgumentException("failed");
+			}
+			String s1 = agent.marshal().toString();
+			AgentManic agent2 = new AgentManic(Json.parse(s1), new Random(1234), mentor);
+			if(!(agent2.planningSystem instanceof CemPlanningSystem) || !s1.equals(agent2.marshal().toString()))
+				throw new IllegalArgumentException("failed");
+		}
+
+		// Options that only apply to the genetic planner are rejected
+		AgentManic agent = new AgentManic(new Random(1234));
+		agent.samplingPlanner = true;
+		agent.gradientPlanIters = 5;
+		try {
+			startTestAgent(agent, newTestMentor(), 0);
+			throw new IllegalStateException("failed");
+		} catch(IllegalArgumentException e) {
+		}
+		System.out.println("passed");
+	}
+}
@@ -10,34 +10,45 @@ public class ContentmentModel {
 	ITutor tutor;
 	public int trainPos;
 	public int trainSize;
+	public long version; // incremented whenever the predictions of this model may have changed
 	public int trainIters;
 	public double learningRate;
 	public int trainProgress;
 	public double err;
 	double[] targBuf;
+	boolean singlePrecision;
+	double[] sampleBuf;
+	public int batchSize; // the number of patterns per training step (1 = incremental training)
+	Matrix batchIn;
+	Matrix batchOut;
+	InferenceContext evalCtx; // buffers for evaluateBatch (allocated on demand)
+	double[] evalBuf;
 
 
-	// General-purpose constructor
-	ContentmentModel(int beliefDims, int total_layers, int queue_size, int trainItersPerPattern, Random r) {
+	// General-purpose constructor. If singlePrecision is true, the weights and the training buffers are stored as floats.
+	ContentmentModel(int beliefDims, int total_layers, int queue_size, int trainItersPerPattern, boolean singlePrecision, Random r) {
 
 		// Init the model
 		rand = r;
 		model = new NeuralNet();
 		int hidden = Math.min(30, beliefDims * 10);
-		model.layers.add(new LayerLinear(beliefDims, hidden));
+		model.layers.add(new LayerLinear(beliefDims, hidden, singlePrecision));
 		model.layers.add(new LayerTanh(hidden));
-		model.layers.add(new LayerLinear(hidden, 1));
+		model.layers.add(new LayerLinear(hidden, 1, singlePrecision));
 		model.layers.add(new LayerTanh(1));
 		model.init(rand);
 
 		// Init the buffers
-		samples = new Matrix(queue_size, beliefDims);
-		contentment = new Matrix(queue_size, 1);
+		this.singlePrecision = singlePrecision;
+		samples = new Matrix(queue_size, beliefDims, singlePrecision, singlePrecision);
+		contentment = new Matrix(queue_size, 1, singlePrecision, singlePrecision);
+		sampleBuf = new double[beliefDims];
 
 		// Init the meta-parameters
 		trainIters = trainItersPerPattern;
 		learningRate = 0.03;
 		targBuf = new double[1];
+		batchSize = 1;
 	}
 
 
@@ -45,8 +56,10 @@ public class ContentmentModel {
 	ContentmentModel(Json obj, Random r) {
 		rand = r;
 		model = new NeuralNet(obj.get("model"));
-		samples = new Matrix(obj.get("samples"));
-		contentment = new Matrix(obj.get("contentment"));
+		singlePrecision = obj.has("singlePrecision") && obj.getBool("singlePrecision");
+		samples = new Matrix(obj.get("samples"), singlePrecision, singlePrecision);
+		contentment = new Matrix(obj.get("contentment"), singlePrecision, singlePrecision);
+		sampleBuf = new double[samples.cols()];
 		trainPos = (int)obj.getLong("trainPos");
 		trainSize = (int)obj.getLong("trainSize");
 		trainIters = (int)obj.getLong("trainIters");
@@ -54,6 +67,7 @@ public class ContentmentModel {
 		trainProgress = (int)obj.getLong("trainProgress");
 		err = obj.getDouble("err");
 		targBuf = new double[1];
+		batchSize = obj.has("batchSize") ? (int)obj.getLong("batchSize") : 1;
 	}
 
 
@@ -69,12 +83,15 @@ public class ContentmentModel {
 		obj.add("learningRate", learningRate);
 		obj.add("trainProgress", trainProgress);
 		obj.add("err", err);
+		obj.add("singlePrecision", singlePrecision);
+		obj.add("batchSize", batchSize);
 		return obj;
 	}
 
 
 	void setTutor(ITutor t) {
 		tutor = t;
+		version++;
 	}
 
 
@@ -84,8 +101,9 @@ public class ContentmentModel {
 		// Present a sample of beliefs and corresponding contentment for training
 		int index = rand.nextInt(trainSize);
 		model.regularize(learningRate * 0.000001);
-		model.trainIncremental(samples.row(index), contentment.row(index), learningRate);
-		err += Vec.squaredDistance(model.layers.get(model.layers.size() - 1).activation, contentment.row(index));
+		double[] targ = contentment.row(index, targBuf);
+		model.trainIncremental(samples.row(index, sampleBuf), targ, learningRate);
+		err += Vec.squaredDistance(model.layers.get(model.layers.size() - 1).activation, targ);
 		if(++trainProgress >= 1000) {
 			trainProgress = 0;
 			//System.out.println("Contentment error: " + Double.toString(err / 1000.0));
@@ -94,25 +112,64 @@ public class ContentmentModel {
 	}
 
 
+	/// Performs one minibatch step of gradient descent on batchSize randomly-drawn samples
+	void doSomeBatchTraining() {
+
+		// Draw the batch
+		if(batchIn == null || batchIn.rows() != batchSize) {
+			batchIn = new Matrix(batchSize, samples.cols(), true);
+			batchOut = new Matrix(batchSize, 1, true);
+		}
+		for(int i = 0; i < batchSize; i++) {
+			int index = rand.nextInt(trainSize);
+			batchIn.setRow(i, samples.row(index, sampleBuf));
+			batchOut.set(i, 0, contentment.get(index, 0));
+		}
+
+		// Present the batch
+		model.regularize(learningRate * 0.000001 * batchSize);
+		model.trainBatch(batchIn, batchOut, learningRate);
+		err += Vec.squaredDistance(model.layers.get(model.layers.size() - 1).batchActivation.data(), batchOut.data());
+		trainProgress += batchSize;
+		if(trainProgress >= 1000) {
+			trainProgress = 0;
+			err = 0.0;
+		}
+	}
+
+
 	/// Refines this model based on feedback from the mentor
 	void trainIncremental(double[] sample_beliefs, double sample_contentment) {
+		addSample(sample_beliefs, sample_contentment);
+		train();
+	}
 
-		// Buffer the samples
-		double[] dest = samples.row(trainPos);
-		if(sample_beliefs.length != dest.length)
+
+	/// Adds feedback from the mentor to the buffer of samples, without training on it
+	void addSample(double[] sample_beliefs, double sample_contentment) {
+		if(sample_beliefs.length != samples.cols())
 			throw new IllegalArgumentException("size mismatch");
-		for(int i = 0; i < dest.length; i++)
-			dest[i] = sample_beliefs[i];
-		contentment.row(trainPos)[0] = sample_contentment;
+		samples.setRow(trainPos, sample_beliefs);
+		contentment.set(trainPos, 0, sample_contentment);
 		trainPos++;
 		trainSize = Math.max(trainSize, trainPos);
 		if(trainPos >= samples.rows())
 			trainPos = 0;
+	}
+
 
-		// Do a few iterations of stochastic gradient descent
+	/// Does a few iterations of stochastic gradient descent on the buffered samples
+	void train() {
+		version++;
 		int iters = Math.min(trainIters, trainSize);
-		for(int i = 0; i < iters; i++)
-			doSomeTraining();
+		if(batchSize > 1) {
+			for(int i = 0; i < iters; i += batchSize)
+				doSomeBatchTraining();
+		}
+		else {
+			for(int i = 0; i < iters; i++)
+				doSomeTraining();
+		}
 	}
 
 
@@ -123,6 +180,102 @@ public class ContentmentModel {
 		double[] output = model.forwardProp(beliefs);
 		return output[0];
 	}
+
+
+	/// Like evaluate, but uses the buffers in ctx. (Use one context per thread.)
+	public double evaluate(InferenceContext ctx, double[] beliefs) {
+		if(tutor != null)
+			return tutor.evaluateState(beliefs);
+		double[] output = model.forwardProp(ctx, beliefs);
+		return output[0];
+	}
+
+
+	/// Computes the contentment of every row of beliefs (a dense matrix), and puts them in out
+	public void evaluateBatch(Matrix beliefs, double[] out) {
+		evaluateBatch(beliefs, beliefs.rows(), out);
+	}
+
+
+	/// Computes the contentment of the first "count" rows of beliefs (a dense matrix), and puts them in out.
+	/// This does one batched forward pass, and gives exactly the same values as calling evaluate on each row.
+	public void evaluateBatch(Matrix beliefs, int count, double[] out) {
+		if(beliefs.cols() != samples.cols() || beliefs.rows() < count || out.length < count)
+			throw new IllegalArgumentException("size mismatch");
+		if(tutor != null) {
+			if(evalBuf == null)
+				evalBuf = new double[samples.cols()];
+			for(int i = 0; i < count; i++)
+				out[i] = tutor.evaluateState(beliefs.row(i, evalBuf));
+			return;
+		}
+		if(evalCtx == null)
+			evalCtx = model.newContext();
+		Matrix pred = model.forwardPropBatch(evalCtx, beliefs, count);
+		double[] p = pred.data();
+		for(int i = 0; i < count; i++)
+			out[i] = p[pred.rowStart(i)];
+	}
+
+
+	/// Checks that evaluateBatch matches evaluate exactly, in both double and single precision
+	public static void testEvaluateBatch() {
+		for(int p = 0; p < 2; p++) {
+			Random r = new Random(1234);
+			ContentmentModel cm = new ContentmentModel(5, 2, 100, 50, p == 1, r);
+			for(int i = 0; i < 20; i++)
+				cm.trainIncremental(randomBeliefs(r, 5), r.nextDouble());
+			Matrix beliefs = new Matrix(37, 5, true);
+			for(int i = 0; i < beliefs.rows(); i++)
+				beliefs.setRow(i, randomBeliefs(r, 5));
+			double[] out = new double[beliefs.rows()];
+			cm.evaluateBatch(beliefs, 30, out);
+			double[] buf = new double[5];
+			for(int i = 0; i < 30; i++) {
+				if(out[i] != cm.evaluate(beliefs.row(i, buf)))
+					throw new IllegalArgumentException("failed");
+			}
+		}
+		System.out.println("passed");
+	}
+
+
+	static double[] randomBeliefs(Random r, int dims) {
+		double[] b = new double[dims];
+		for(int i = 0; i < dims; i++)
+			b[i] = r.nextDouble() * 2.0 - 1.0;
+		return b;
+	}
+
+
+	/// Measures how many belief vectors per second evaluate and evaluateBatch can score
+	public static void benchmarkEvaluate() {
+		Random r = new Random(1234);
+		ContentmentModel cm = new ContentmentModel(8, 2, 100, 50, false, r);
+		double[] buf = new double[8];
+		for(int batch = 8; batch <= 512; batch *= 4) {
+			Matrix beliefs = new Matrix(batch, 8, true);
+			for(int i = 0; i < batch; i++)
+				beliefs.setRow(i, randomBeliefs(r, 8));
+			double[] out = new double[batch];
+			int reps = 2000000 / batch;
+			for(int pass = 0; pass < 2; pass++) { // The first pass warms up the JIT
+				long t0 = System.nanoTime();
+				for(int k = 0; k < reps; k++) {
+					for(int i = 0; i < batch; i++)
+						out[i] = cm.evaluate(beliefs.row(i, buf));
+				}
+				long t1 = System.nanoTime();
+				for(int k = 0; k < reps; k++)
+					cm.evaluateBatch(beliefs, out);
+				long t2 = System.nanoTime();
+				if(pass == 1)
+					System.out.println("batch=" + Integer.toString(batch) +
+						", evaluate: " + Long.toString((long)(reps * batch * 1e9 / (t1 - t0))) + "/s" +
+						", evaluateBatch: " + Long.toString((long)(reps * batch * 1e9 / (t2 - t1))) + "/s");
+			}
+		}
+	}
 }
 
 
@@ -0,0 +1,53 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.List;
+
+/// A stand-in for an agent, which is handed to a mentor that evaluates plans on another thread.
+/// It answers anticipateObservation for the plans it was made with, from observations that were
+/// anticipated when it was made. So the mentor sees the agent as it was, while the real agent keeps learning.
+class FrozenAgent implements IAgent {
+	String name;
+	List<Matrix> plans;
+	double[][] observations; // the anticipated observations for each plan
+
+	FrozenAgent(String agentName, List<Matrix> planList, double[][] anticipatedObservations) {
+		if(planList.size() != anticipatedObservations.length)
+			throw new IllegalArgumentException("size mismatch");
+		name = agentName;
+		plans = planList;
+		observations = anticipatedObservations;
+	}
+
+	public String getName() { return name; }
+
+	public double[] anticipateObservation(Matrix plan) {
+		for(int i = 0; i < plans.size(); i++) {
+			if(plans.get(i) == plan)
+				return Vec.copy(observations[i]);
+		}
+		throw new IllegalArgumentException("A frozen agent can only anticipate the plans it was asked to evaluate");
+	}
+
+	public void reset(IMentor mentor, int observationDims, int beliefDims, int actionDims, int maxPlanLength) {
+		throw new IllegalArgumentException("A frozen agent cannot be reset");
+	}
+
+	public void teleport() {
+		throw new IllegalArgumentException("A frozen agent cannot be teleported");
+	}
+
+	public void setMentor(IMentor mentor) {
+		throw new IllegalArgumentException("A frozen agent cannot change its mentor");
+	}
+
+	public void setTutor(ITutor tutor, boolean helpWithObservations, boolean helpWithTransitions, boolean helpWithContentment, boolean helpWithPlanning) {
+		throw new IllegalArgumentException("A frozen agent cannot change its tutor");
+	}
+
+	public double[] think(double[] observations) {
+		throw new IllegalArgumentException("A frozen agent cannot think");
+	}
+}
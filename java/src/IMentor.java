@@ -1,3 +1,5 @@
+import java.util.List;
+
 
 /// A mentor helps the agent learn what to do.
 /// It does not help the agent learn how to do anything.
@@ -13,4 +15,14 @@ public interface IMentor {
 	///         or if the mentor is not available, or if the mentor wants to test the
 	///         agent by letting the agent decide for itself.
 	double evaluatePlan(IAgent agent, Matrix plan);
+
+	/// Evaluates several plans at once, and returns one evaluation per plan (each as described for evaluatePlan).
+	/// Mentors that can amortize work across plans, such as simulators, should override this.
+	/// (When the agent uses asynchronous feedback, this is called on another thread.)
+	default double[] evaluatePlans(IAgent agent, List<Matrix> plans) {
+		double[] results = new double[plans.size()];
+		for(int i = 0; i < results.length; i++)
+			results[i] = evaluatePlan(agent, plans.get(i));
+		return results;
+	}
 }
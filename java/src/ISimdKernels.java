@@ -0,0 +1,22 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+/// The vectorized kernels that Vec can hand its hot loops to.
+/// The only implementation, VecSimd, needs the incubating jdk.incubator.vector module, so Vec loads it by
+/// name when SIMD is requested. Nothing else refers to it, so the default build does not need that module.
+interface ISimdKernels
+{
+	/// Returns the number of doubles processed per SIMD instruction
+	int laneCount();
+
+	/// Adds scalar * src[srcStart...srcStart+len) to dest[destStart...destStart+len)
+	void addScaled(double[] dest, int destStart, double[] src, int srcStart, int len, double scalar);
+
+	/// Returns the dot product of a[aStart...aStart+len) with b[bStart...bStart+len)
+	double dotProduct(double[] a, int aStart, double[] b, int bStart, int len);
+
+	/// Returns the squared distance between a[aStart...aStart+len) and b[bStart...bStart+len)
+	double squaredDistance(double[] a, int aStart, double[] b, int bStart, int len);
+}
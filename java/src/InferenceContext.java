@@ -0,0 +1,53 @@
+
+/// Holds the per-call working buffers (activations, errors, and scratch space) for evaluating a NeuralNet.
+/// The network itself only supplies the parameters, so several threads may evaluate one
+/// network at the same time, as long as each thread uses its own context.
+/// (Training still uses the buffers inside the layers, so it must not run concurrently with anything else.)
+public class InferenceContext
+{
+	double[][] activation;
+	double[][] error;
+	float[][] scratch;
+	Matrix batchIn; // staging rows for the inputs of a batched call (allocated on demand)
+	Matrix[] batchActivation; // one dense matrix per layer for batched calls (allocated on demand)
+	int inputCount;
+
+
+	/// Makes a context with buffers sized for the specified network
+	InferenceContext(NeuralNet nn)
+	{
+		int n = nn.layers.size();
+		activation = new double[n][];
+		error = new double[n][];
+		scratch = new float[n][];
+		inputCount = nn.layers.get(0).inputCount();
+		for(int i = 0; i < n; i++)
+		{
+			Layer l = nn.layers.get(i);
+			activation[i] = new double[l.outputCount()];
+			error[i] = new double[l.outputCount()];
+			scratch[i] = l.newScratch();
+		}
+	}
+
+
+	/// Makes sure the batch buffers have room for at least the specified number of patterns.
+	/// (They only grow, so a context that is reused does not allocate in steady state.)
+	void ensureBatchCapacity(int patterns)
+	{
+		if(batchIn != null && batchIn.rows() >= patterns)
+			return;
+		int inputs = batchIn != null ? batchIn.cols() : inputCount;
+		batchIn = new Matrix(patterns, inputs, true);
+		batchActivation = new Matrix[activation.length];
+		for(int i = 0; i < activation.length; i++)
+			batchActivation[i] = new Matrix(patterns, activation[i].length, true);
+	}
+
+
+	/// Returns the output of the most recent forward propagation with this context
+	double[] output()
+	{
+		return activation[activation.length - 1];
+	}
+}
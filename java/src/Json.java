@@ -67,6 +67,11 @@ abstract class Json
 		return this.asList().get(index);
 	}
 
+	public boolean has(String name)
+	{
+		return this.asObject().fieldIfExists(name) != null;
+	}
+
 	public boolean getBool(String name)
 	{
 		return get(name).asBool();
@@ -1,9 +1,16 @@
+import java.util.Arrays;
 import java.util.Random;
 
+/// A layer holds parameters plus its own activation and error buffers. The methods that take those
+/// buffers as arguments do not touch any layer state other than the parameters, so many threads may
+/// evaluate one layer concurrently, each with its own buffers. (See InferenceContext.)
 abstract class Layer
 {
 	double[] activation;
 	double[] error;
+	float[] scratchF; // single-precision working space (null for layers that do not need it)
+	Matrix batchActivation; // one row per pattern in the most recent batch (allocated on demand)
+	Matrix batchError;
 
 	static final int t_linear = 0;
 	static final int t_tanh = 1;
@@ -35,6 +42,12 @@ abstract class Layer
 
 
 	void computeError(double[] target)
+	{
+		computeError(target, activation, error);
+	}
+
+
+	void computeError(double[] target, double[] activation, double[] error)
 	{
 		if(target.length != activation.length)
 			throw new IllegalArgumentException("size mismatch. " + Integer.toString(target.length) + " != " + Integer.toString(activation.length));
@@ -51,6 +64,59 @@ abstract class Layer
 	}
 
 
+	/// Returns new working space suitable for passing to the methods of this layer that take buffers
+	float[] newScratch()
+	{
+		return null;
+	}
+
+
+	double[] forwardProp(double[] in)
+	{
+		return forwardProp(in, activation, scratchF);
+	}
+
+
+	void backProp(Layer upStream)
+	{
+		backProp(activation, error, upStream.error, scratchF);
+	}
+
+
+	/// Makes sure the batch buffers hold exactly the specified number of patterns
+	void ensureBatchSize(int patterns)
+	{
+		if(batchActivation == null || batchActivation.rows() != patterns)
+		{
+			batchActivation = new Matrix(patterns, activation.length, true);
+			batchError = new Matrix(patterns, activation.length, true);
+		}
+	}
+
+
+	/// Propagates every row of "in" (a dense matrix) forward, using the batch buffers in this layer.
+	Matrix forwardPropBatch(Matrix in)
+	{
+		ensureBatchSize(in.rows());
+		forwardPropBatch(in, in.rows(), batchActivation);
+		return batchActivation;
+	}
+
+
+	void computeErrorBatch(Matrix target)
+	{
+		if(target.rows() != batchActivation.rows() || target.cols() != activation.length)
+			throw new IllegalArgumentException("size mismatch");
+		double[] t = target.data();
+		double[] a = batchActivation.data();
+		double[] e = batchError.data();
+		for(int i = 0; i < e.length; i++)
+		{
+			e[i] = t[i] - a[i];
+		}
+	}
+
+
 	static Layer unmarshal(Json n)
 	{
 		int t = (int)n.getLong("type");
@@ -63,15 +129,26 @@ abstract class Layer
 	}
 
 
+	/// Returns true iff that is the same kind of layer, with exactly the same parameters
+	boolean sameWeights(Layer that)
+	{
+		return that.getClass() == getClass();
+	}
+
+
 	protected abstract Layer clone();
 	abstract Json marshal();
 	abstract int type();
 	abstract int inputCount();
 	abstract void initWeights(Random r);
-	abstract double[] forwardProp(double[] in);
-	abstract void backProp(Layer upStream);
+	abstract double[] forwardProp(double[] in, double[] activation, float[] scratchF);
+	abstract void forwardPropBatch(Matrix in, int patterns, Matrix out);
+	abstract void backProp(double[] activation, double[] error, double[] upError, float[] scratchF);
+	abstract void backPropBatch(Layer upStream);
 	abstract void scaleGradient(double momentum);
 	abstract void updateGradient(double[] in);
+	abstract void descendGradient(double[] in, double learningRate);
+	abstract void descendGradientBatch(Matrix in, double learningRate);
 	abstract void step(double stepSize);
 	abstract int countWeights();
 	abstract int setWeights(double[] w, int start);
@@ -82,22 +159,34 @@ abstract class Layer
 
 class LayerLinear extends Layer
 {
-	Matrix weights; // rows are inputs, cols are outputs
-	Matrix weightsGrad;
+	Matrix weights; // rows are inputs, cols are outputs (stored densely, as floats in single-precision mode)
+	Matrix weightsGrad; // allocated only when the gradient is accumulated explicitly (see ensureGradient)
 	double[] bias;
 	double[] biasGrad;
+	double regTolerance; // if > 0, regularization is deferred until this much L1 shrinkage has accumulated
+	double pendingScale = 1.0; // deferred L2 scale factor
+	double pendingShrink; // deferred L1 shrinkage
+
+	// Float weights always defer regularization until at least this much shrinkage has accumulated,
+	// because a single step (often ~1e-9) is far below float precision and would round away to nothing.
+	static final double FLOAT_REG_TOLERANCE = 1e-6;
 
 
 	/// General-purpose constructor
 	LayerLinear(int inputs, int outputs)
+	{
+		this(inputs, outputs, false);
+	}
+
+
+	/// Makes a layer whose weights are stored with single (float) precision if singlePrecision is true.
+	/// (The bias, activation, and error vectors are small, so they remain double-precision.)
+	LayerLinear(int inputs, int outputs, boolean singlePrecision)
 	{
 		super(outputs);
-		weights = new Matrix();
-		weights.setSize(inputs, outputs);
-		weightsGrad = new Matrix();
-		weightsGrad.setSize(inputs, outputs);
+		weights = new Matrix(inputs, outputs, true, singlePrecision);
 		bias = new double[outputs];
-		biasGrad = new double[outputs];
+		scratchF = newScratch();
 	}
 
 
@@ -106,14 +195,14 @@ class LayerLinear extends Layer
 	{
 		super(that);
 		weights = new Matrix(that.weights);
-		weightsGrad = new Matrix(that.weightsGrad);
 		bias = Vec.copy(that.bias);
-		biasGrad = Vec.copy(that.biasGrad);
-		weightsGrad = new Matrix();
-		weightsGrad.setSize(weights.rows(), weights.cols());
-		weightsGrad.setAll(0.0);
-		biasGrad = new double[weights.cols()];
-		Vec.setAll(biasGrad, 0.0);
+		regTolerance = that.regTolerance;
+		scratchF = newScratch();
+
+		// Apply any deferred regularization to the copy (leaving that as it is)
+		pendingScale = that.pendingScale;
+		pendingShrink = that.pendingShrink;
+		flushRegularization();
 	}
 
 
@@ -121,8 +210,12 @@ class LayerLinear extends Layer
 	LayerLinear(Json n)
 	{
 		super(n);
-		weights = new Matrix(n.get("weights"));
+		boolean singlePrecision = n.has("single") && n.getBool("single");
+		weights = new Matrix(n.get("weights"), true, singlePrecision);
 		bias = Vec.unmarshal(n.get("bias"));
+		if(n.has("regTolerance"))
+			regTolerance = n.getDouble("regTolerance");
+		scratchF = newScratch();
 	}
 
 
@@ -136,22 +229,49 @@ class LayerLinear extends Layer
 	Json marshal()
 	{
 		Json ob = Json.newObject();
+		ob.add("type", (long)type()); // required in all layers
 		ob.add("units", (long)outputCount()); // required in all layers
-		ob.add("weights", weights.marshal());
-		ob.add("bias", Vec.marshal(bias));
+		if(weights.isSinglePrecision())
+			ob.add("single", true);
+		if(regTolerance > 0.0)
+			ob.add("regTolerance", regTolerance);
+		LayerLinear flat = (pendingShrink == 0.0 ? this : new LayerLinear(this)); // (with any deferred regularization applied)
+		ob.add("weights", flat.weights.marshal());
+		ob.add("bias", Vec.marshal(flat.bias));
 		return ob;
 	}
 
 
+	/// Copies the weights of src, which must have the same shape, into this layer (without allocating anything)
 	void copy(LayerLinear src)
 	{
 		if(src.weights.rows() != weights.rows() || src.weights.cols() != weights.cols())
 			throw new IllegalArgumentException("mismatching sizes");
-		weights.copyBlock(0, 0, src.weights, 0, 0, src.weights.rows(), src.weights.cols());
-		for(int i = 0; i < bias.length; i++)
-		{
-			bias[i] = src.bias[i];
-		}
+		if(weights.isSinglePrecision() != src.weights.isSinglePrecision())
+			weights.copyBlock(0, 0, src.weights, 0, 0, src.weights.rows(), src.weights.cols());
+		else if(weights.isSinglePrecision())
+			System.arraycopy(src.weights.dataF(), 0, weights.dataF(), 0, weights.dataF().length);
+		else
+			System.arraycopy(src.weights.data(), 0, weights.data(), 0, weights.data().length);
+		System.arraycopy(src.bias, 0, bias, 0, bias.length);
+
+		// Apply any deferred regularization to the copy (leaving src as it is)
+		pendingScale = src.pendingScale;
+		pendingShrink = src.pendingShrink;
+		flushRegularization();
+	}
+
+
+	boolean sameWeights(Layer that)
+	{
+		if(!(that instanceof LayerLinear))
+			return false;
+		LayerLinear other = (LayerLinear)that;
+		if(weights.isSinglePrecision() != other.weights.isSinglePrecision() || !Arrays.equals(bias, other.bias))
+			return false;
+		if(weights.isSinglePrecision())
+			return Arrays.equals(weights.dataF(), other.weights.dataF());
+		return Arrays.equals(weights.data(), other.weights.data());
 	}
 
 
@@ -159,22 +279,33 @@ class LayerLinear extends Layer
 	int inputCount() { return weights.rows(); }
 
 
+	/// Single-precision layers accumulate in a float copy of the activation or error
+	float[] newScratch()
+	{
+		return weights.isSinglePrecision() ? new float[weights.cols()] : null;
+	}
+
+
 	void initWeights(Random r)
 	{
 		double dev = Math.max(0.3, 1.0 / weights.rows());
 		for(int i = 0; i < weights.rows(); i++)
 		{
-			double[] row = weights.row(i);
 			for(int j = 0; j < weights.cols(); j++)
 			{
-				row[j] = dev * r.nextGaussian();
+				weights.set(i, j, dev * r.nextGaussian());
 			}
 		}
 		for(int j = 0; j < weights.cols(); j++) {
 			bias[j] = dev * r.nextGaussian();
 		}
-		weightsGrad.setAll(0.0);
-		Vec.setAll(biasGrad, 0.0);
+		if(weightsGrad != null)
+		{
+			weightsGrad.setAll(0.0);
+			Vec.setAll(biasGrad, 0.0);
+		}
+		pendingScale = 1.0;
+		pendingShrink = 0.0;
 	}
 
 
@@ -187,95 +318,244 @@ class LayerLinear extends Layer
 	int setWeights(double[] w, int start)
 	{
 		int oldStart = start;
+		pendingScale = 1.0;
+		pendingShrink = 0.0;
 		for(int i = 0; i < bias.length; i++)
 			bias[i] = w[start++];
 		for(int i = 0; i < weights.rows(); i++)
 		{
-			double[] row = weights.row(i);
 			for(int j = 0; j < weights.cols(); j++)
-				row[j] = w[start++];
+				weights.set(i, j, w[start++]);
 		}
 		return start - oldStart;
 	}
 
 
-	double[] forwardProp(double[] in)
+	double[] forwardProp(double[] in, double[] activation, float[] scratchF)
 	{
 		if(in.length != weights.rows())
 			throw new IllegalArgumentException("size mismatch. " + Integer.toString(in.length) + " != " + Integer.toString(weights.rows()));
+		if(weights.isSinglePrecision())
+		{
+			float[] w = weights.dataF();
+			for(int i = 0; i < activation.length; i++)
+				scratchF[i] = (float)bias[i];
+			for(int j = 0; j < weights.rows(); j++)
+				Vec.addScaled(scratchF, 0, w, weights.rowStart(j), activation.length, (float)in[j]);
+			for(int i = 0; i < activation.length; i++)
+				activation[i] = scratchF[i];
+			return activation;
+		}
 		for(int i = 0; i < activation.length; i++)
 			activation[i] = bias[i];
+		double[] w = weights.data();
 		for(int j = 0; j < weights.rows(); j++)
-		{
-			double v = in[j];
-			double[] w = weights.row(j);
-			for(int i = 0; i < weights.cols(); i++)
-				activation[i] += v * w[i];
-		}
+			Vec.addScaled(activation, 0, w, weights.rowStart(j), activation.length, in[j]);
 		return activation;
 	}
 
 
 	double[] forwardProp2(double[] in1, double[] in2)
+	{
+		return forwardProp2(in1, in2, activation, scratchF);
+	}
+
+
+	double[] forwardProp2(double[] in1, double[] in2, double[] activation, float[] scratchF)
 	{
 		if(in1.length + in2.length != weights.rows())
 			throw new IllegalArgumentException("size mismatch. " + Integer.toString(in1.length) + " + " + Integer.toString(in2.length) + " != " + Integer.toString(weights.rows()));
+		if(weights.isSinglePrecision())
+		{
+			float[] w = weights.dataF();
+			for(int i = 0; i < activation.length; i++)
+				scratchF[i] = (float)bias[i];
+			for(int j = 0; j < in1.length; j++)
+				Vec.addScaled(scratchF, 0, w, weights.rowStart(j), activation.length, (float)in1[j]);
+			for(int j = 0; j < in2.length; j++)
+				Vec.addScaled(scratchF, 0, w, weights.rowStart(in1.length + j), activation.length, (float)in2[j]);
+			for(int i = 0; i < activation.length; i++)
+				activation[i] = scratchF[i];
+			return activation;
+		}
 		for(int i = 0; i < activation.length; i++)
 			activation[i] = bias[i];
+		double[] w = weights.data();
 		for(int j = 0; j < in1.length; j++)
+			Vec.addScaled(activation, 0, w, weights.rowStart(j), activation.length, in1[j]);
+		for(int j = 0; j < in2.length; j++)
+			Vec.addScaled(activation, 0, w, weights.rowStart(in1.length + j), activation.length, in2[j]);
+		return activation;
+	}
+
+
+	/// Propagates the first "patterns" rows of "in" (a dense matrix) forward into the first "patterns" rows
+	/// of "out" (another dense matrix). Each weight row is streamed once per batch. The arithmetic is the
+	/// same as in forwardProp, so each row of the results matches it exactly (in both precisions).
+	void forwardPropBatch(Matrix in, int patterns, Matrix out)
+	{
+		if(in.cols() != weights.rows() || out.cols() != activation.length)
+			throw new IllegalArgumentException("size mismatch. " + Integer.toString(in.cols()) + " != " + Integer.toString(weights.rows()));
+		if(in.rows() < patterns || out.rows() < patterns)
+			throw new IllegalArgumentException("not enough rows");
+		int outputs = activation.length;
+		double[] x = in.data();
+		double[] a = out.data();
+		if(weights.isSinglePrecision())
 		{
-			double v = in1[j];
-			double[] w = weights.row(j);
-			for(int i = 0; i < weights.cols(); i++)
-				activation[i] += v * w[i];
+			// Accumulate with float arithmetic, like forwardProp does
+			for(int b = 0; b < patterns; b++)
+			{
+				int as = out.rowStart(b);
+				for(int i = 0; i < outputs; i++)
+					a[as + i] = (float)bias[i];
+			}
+			float[] w = weights.dataF();
+			for(int j = 0; j < weights.rows(); j++)
+			{
+				int ws = weights.rowStart(j);
+				for(int b = 0; b < patterns; b++)
+				{
+					float v = (float)x[in.rowStart(b) + j];
+					int as = out.rowStart(b);
+					for(int i = 0; i < outputs; i++)
+						a[as + i] = (float)a[as + i] + v * w[ws + i];
+				}
+			}
 		}
-		for(int j = 0; j < in2.length; j++)
+		else if(outputs < 4)
 		{
-			double v = in2[j];
-			double[] w = weights.row(in1.length + j);
-			for(int i = 0; i < weights.cols(); i++)
-				activation[i] += v * w[i];
+			// Narrow layers (like the output of a contentment model) would make a call per weight
+			// in the loop below, so go one pattern at a time. (The sums are accumulated in the same order.)
+			double[] w = weights.data();
+			for(int b = 0; b < patterns; b++)
+			{
+				int as = out.rowStart(b);
+				int xs = in.rowStart(b);
+				for(int i = 0; i < outputs; i++)
+					a[as + i] = bias[i];
+				for(int j = 0; j < weights.rows(); j++)
+				{
+					int ws = weights.rowStart(j);
+					double v = x[xs + j];
+					for(int i = 0; i < outputs; i++)
+						a[as + i] += v * w[ws + i];
+				}
+			}
+		}
+		else
+		{
+			for(int b = 0; b < patterns; b++)
+				System.arraycopy(bias, 0, a, out.rowStart(b), outputs);
+			double[] w = weights.data();
+			for(int j = 0; j < weights.rows(); j++)
+			{
+				int ws = weights.rowStart(j);
+				for(int b = 0; b < patterns; b++)
+					Vec.addScaled(a, out.rowStart(b), w, ws, outputs, x[in.rowStart(b) + j]);
+			}
 		}
-		return activation;
 	}
 
 
-	void backProp(Layer upStream)
+	void backProp(double[] activation, double[] error, double[] upError, float[] scratchF)
+	{
+		if(upError.length != weights.rows())
+			throw new IllegalArgumentException("size mismatch");
+		if(weights.isSinglePrecision())
+		{
+			float[] w = weights.dataF();
+			for(int i = 0; i < error.length; i++)
+				scratchF[i] = (float)error[i];
+			for(int j = 0; j < weights.rows(); j++)
+				upError[j] = Vec.dotProduct(scratchF, 0, w, weights.rowStart(j), error.length);
+		}
+		else
+		{
+			double[] w = weights.data();
+			for(int j = 0; j < weights.rows(); j++)
+				upError[j] = Vec.dotProduct(error, 0, w, weights.rowStart(j), error.length);
+		}
+	}
+
+
+	void backPropBatch(Layer upStream)
 	{
 		if(upStream.outputCount() != weights.rows())
 			throw new IllegalArgumentException("size mismatch");
-		for(int j = 0; j < weights.rows(); j++)
+		int patterns = batchError.rows();
+		int outputs = error.length;
+		double[] e = batchError.data();
+		double[] up = upStream.batchError.data();
+		if(weights.isSinglePrecision())
+		{
+			// Same float arithmetic as backProp, one pattern at a time
+			float[] w = weights.dataF();
+			for(int b = 0; b < patterns; b++)
+			{
+				int es = batchError.rowStart(b);
+				int us = upStream.batchError.rowStart(b);
+				for(int i = 0; i < outputs; i++)
+					scratchF[i] = (float)e[es + i];
+				for(int j = 0; j < weights.rows(); j++)
+					up[us + j] = Vec.dotProduct(scratchF, 0, w, weights.rowStart(j), outputs);
+			}
+		}
+		else
 		{
-			double[] w = weights.row(j);
-			double d = 0.0;
-			for(int i = 0; i < weights.cols(); i++)
+			double[] w = weights.data();
+			for(int j = 0; j < weights.rows(); j++)
 			{
-				d += error[i] * w[i];
+				int ws = weights.rowStart(j);
+				for(int b = 0; b < patterns; b++)
+					up[upStream.batchError.rowStart(b) + j] = Vec.dotProduct(e, batchError.rowStart(b), w, ws, outputs);
 			}
-			upStream.error[j] = d;
 		}
 	}
 
 
 	void refineInputs(double[] inputs, double learningRate)
+	{
+		refineInputs(error, inputs, learningRate, scratchF);
+	}
+
+
+	/// Adds learningRate times the gradient of the error with respect to the inputs to "inputs"
+	void refineInputs(double[] error, double[] inputs, double learningRate, float[] scratchF)
 	{
 		if(inputs.length != weights.rows())
 			throw new IllegalArgumentException("size mismatch");
-		for(int j = 0; j < weights.rows(); j++)
+		if(weights.isSinglePrecision())
 		{
-			double[] w = weights.row(j);
-			double d = 0.0;
-			for(int i = 0; i < weights.cols(); i++)
-			{
-				d += error[i] * w[i];
-			}
-			inputs[j] += learningRate * d;
+			float[] w = weights.dataF();
+			for(int i = 0; i < error.length; i++)
+				scratchF[i] = (float)error[i];
+			for(int j = 0; j < weights.rows(); j++)
+				inputs[j] += learningRate * Vec.dotProduct(scratchF, 0, w, weights.rowStart(j), error.length);
+		}
+		else
+		{
+			double[] w = weights.data();
+			for(int j = 0; j < weights.rows(); j++)
+				inputs[j] += learningRate * Vec.dotProduct(error, 0, w, weights.rowStart(j), error.length);
+		}
+	}
+
+
+	/// Allocates the gradient buffers, if they have not been allocated yet
+	void ensureGradient()
+	{
+		if(weightsGrad == null)
+		{
+			weightsGrad = new Matrix(weights.rows(), weights.cols(), true, weights.isSinglePrecision());
+			biasGrad = new double[bias.length];
 		}
 	}
 
 
 	void scaleGradient(double momentum)
 	{
+		ensureGradient();
 		weightsGrad.scale(momentum);
 		Vec.scale(biasGrad, momentum);
 	}
@@ -283,17 +563,105 @@ class LayerLinear extends Layer
 
 	void updateGradient(double[] in)
 	{
+		ensureGradient();
 		for(int i = 0; i < bias.length; i++)
 		{
 			biasGrad[i] += error[i];
 		}
-		for(int j = 0; j < weights.rows(); j++)
+		if(weightsGrad.isSinglePrecision())
+		{
+			float[] g = weightsGrad.dataF();
+			for(int i = 0; i < error.length; i++)
+				scratchF[i] = (float)error[i];
+			for(int j = 0; j < weights.rows(); j++)
+				Vec.addScaled(g, weightsGrad.rowStart(j), scratchF, 0, error.length, (float)in[j]);
+		}
+		else
+		{
+			double[] g = weightsGrad.data();
+			for(int j = 0; j < weights.rows(); j++)
+				Vec.addScaled(g, weightsGrad.rowStart(j), error, 0, error.length, in[j]);
+		}
+	}
+
+
+	/// Takes one momentum-free step of gradient descent in a single pass over the weights.
+	/// (This is equivalent to scaleGradient(0.0), updateGradient(in), step(learningRate),
+	/// but it does not touch the gradient buffers.)
+	void descendGradient(double[] in, double learningRate)
+	{
+		Vec.addScaled(bias, error, learningRate);
+		if(weights.isSinglePrecision())
+		{
+			float[] w = weights.dataF();
+			float lr = (float)learningRate;
+			for(int i = 0; i < error.length; i++)
+				scratchF[i] = (float)error[i];
+			for(int j = 0; j < weights.rows(); j++)
+			{
+				int ws = weights.rowStart(j);
+				float x = (float)in[j];
+				for(int i = 0; i < error.length; i++)
+					w[ws + i] += lr * (x * scratchF[i]);
+			}
+		}
+		else
+		{
+			double[] w = weights.data();
+			for(int j = 0; j < weights.rows(); j++)
+			{
+				int ws = weights.rowStart(j);
+				double x = in[j];
+				for(int i = 0; i < error.length; i++)
+					w[ws + i] += learningRate * (x * error[i]);
+			}
+		}
+	}
+
+
+	/// Applies the gradient of every pattern in the batch directly to the weights.
+	/// Each weight row is streamed once per batch, and no gradient buffers are used.
+	void descendGradientBatch(Matrix in, double learningRate)
+	{
+		int patterns = batchError.rows();
+		int outputs = error.length;
+		double[] e = batchError.data();
+		double[] x = in.data();
+		for(int b = 0; b < patterns; b++)
+			Vec.addScaled(bias, 0, e, batchError.rowStart(b), outputs, learningRate);
+		if(weights.isSinglePrecision())
+		{
+			// Same float arithmetic as descendGradient, one pattern at a time
+			float[] w = weights.dataF();
+			float lr = (float)learningRate;
+			for(int b = 0; b < patterns; b++)
+			{
+				int es = batchError.rowStart(b);
+				int xs = in.rowStart(b);
+				for(int i = 0; i < outputs; i++)
+					scratchF[i] = (float)e[es + i];
+				for(int j = 0; j < weights.rows(); j++)
+				{
+					int ws = weights.rowStart(j);
+					float v = (float)x[xs + j];
+					for(int i = 0; i < outputs; i++)
+						w[ws + i] += lr * (v * scratchF[i]);
+				}
+			}
+		}
+		else
 		{
-			double[] w = weightsGrad.row(j);
-			double x = in[j];
-			for(int i = 0; i < weights.cols(); i++)
+			double[] w = weights.data();
+			for(int j = 0; j < weights.rows(); j++)
 			{
-				w[i] += x * error[i];
+				int ws = weights.rowStart(j);
+				for(int b = 0; b < patterns; b++)
+				{
+					double v = x[in.rowStart(b) + j];
+					int es = batchError.rowStart(b);
+					for(int i = 0; i < outputs; i++)
+						w[ws + i] += learningRate * (v * e[es + i]);
+				}
 			}
 		}
 	}
@@ -301,25 +669,37 @@ class LayerLinear extends Layer
 
 	void step(double stepSize)
 	{
+		ensureGradient();
 		weights.addScaled(weightsGrad, stepSize);
 		Vec.addScaled(bias, biasGrad, stepSize);
 	}
 
 
-	// Applies both L2 and L1 regularization to the weights and bias values
+	// Applies both L2 and L1 regularization to the weights and bias values.
+	// If regTolerance > 0, the work is deferred: successive calls are folded into a single
+	// scale factor and L1 shrinkage, which are applied in one pass once the accumulated
+	// shrinkage reaches regTolerance. (Copies and marshaled weights have the deferred work
+	// applied to them, but the layer they came from keeps deferring it.)
 	void regularizeWeights(double lambda)
 	{
-		for(int i = 0; i < weights.rows(); i++)
+		double tolerance = weights.isSinglePrecision() ? Math.max(regTolerance, FLOAT_REG_TOLERANCE) : regTolerance;
+		if(tolerance > 0.0)
 		{
-			double[] row = weights.row(i);
-			for(int j = 0; j < row.length; j++)
-			{
-				row[j] *= (1.0 - lambda);
-				if(row[j] < 0.0)
-					row[j] += lambda;
-				else
-					row[j] -= lambda;
-			}
+			// (The accumulators are doubles, so float weights still decay.)
+			pendingScale *= (1.0 - lambda);
+			pendingShrink = pendingShrink * (1.0 - lambda) + lambda;
+			if(pendingShrink >= tolerance)
+				flushRegularization();
+			return;
+		}
+		double[] w = weights.data();
+		for(int i = 0; i < w.length; i++)
+		{
+			w[i] *= (1.0 - lambda);
+			if(w[i] < 0.0)
+				w[i] += lambda;
+			else
+				w[i] -= lambda;
 		}
 		for(int j = 0; j < bias.length; j++)
 		{
@@ -330,6 +710,42 @@ class LayerLinear extends Layer
 				bias[j] -= lambda;
 		}
 	}
+
+
+	/// Applies any regularization that has been deferred (see regularizeWeights).
+	/// Weights that the L1 shrinkage would push across zero are clamped at zero.
+	void flushRegularization()
+	{
+		if(pendingShrink == 0.0)
+			return;
+		double sc = pendingScale;
+		double sh = pendingShrink;
+		if(weights.isSinglePrecision())
+		{
+			float[] w = weights.dataF();
+			for(int i = 0; i < w.length; i++)
+			{
+				double v = sc * w[i];
+				w[i] = (float)(v < 0.0 ? Math.min(0.0, v + sh) : Math.max(0.0, v - sh));
+			}
+		}
+		else
+		{
+			double[] w = weights.data();
+			for(int i = 0; i < w.length; i++)
+			{
+				double v = sc * w[i];
+				w[i] = (v < 0.0 ? Math.min(0.0, v + sh) : Math.max(0.0, v - sh));
+			}
+		}
+		for(int j = 0; j < bias.length; j++)
+		{
+			double v = sc * bias[j];
+			bias[j] = (v < 0.0 ? Math.min(0.0, v + sh) : Math.max(0.0, v - sh));
+		}
+		pendingScale = 1.0;
+		pendingShrink = 0.0;
+	}
 }
 
 
@@ -369,6 +785,7 @@ class LayerTanh extends Layer
 	Json marshal()
 	{
 		Json ob = Json.newObject();
+		ob.add("type", (long)type()); // required in all layers
 		ob.add("units", (long)outputCount()); // required in all layers
 		return ob;
 	}
@@ -402,9 +819,9 @@ class LayerTanh extends Layer
 	}
 
 
-	double[] forwardProp(double[] in)
+	double[] forwardProp(double[] in, double[] activation, float[] scratchF)
 	{
-		if(in.length != outputCount())
+		if(in.length != activation.length)
 			throw new IllegalArgumentException("size mismatch. " + Integer.toString(in.length) + " != " + Integer.toString(outputCount()));
 		for(int i = 0; i < activation.length; i++)
 		{
@@ -414,13 +831,43 @@ class LayerTanh extends Layer
 	}
 
 
-	void backProp(Layer upStream)
+	void forwardPropBatch(Matrix in, int patterns, Matrix out)
 	{
-		if(upStream.outputCount() != outputCount())
+		if(in.cols() != outputCount() || out.cols() != outputCount())
+			throw new IllegalArgumentException("size mismatch. " + Integer.toString(in.cols()) + " != " + Integer.toString(outputCount()));
+		if(in.rows() < patterns || out.rows() < patterns)
+			throw new IllegalArgumentException("not enough rows");
+		double[] x = in.data();
+		double[] a = out.data();
+		int n = patterns * outputCount(); // dense rows are contiguous
+		for(int i = 0; i < n; i++)
+		{
+			a[i] = Math.tanh(x[i]);
+		}
+	}
+
+
+	void backProp(double[] activation, double[] error, double[] upError, float[] scratchF)
+	{
+		if(upError.length != activation.length)
 			throw new IllegalArgumentException("size mismatch");
 		for(int i = 0; i < activation.length; i++)
 		{
-			upStream.error[i] = error[i] * (1.0 - activation[i] * activation[i]);
+			upError[i] = error[i] * (1.0 - activation[i] * activation[i]);
+		}
+	}
+
+
+	void backPropBatch(Layer upStream)
+	{
+		if(upStream.outputCount() != outputCount())
+			throw new IllegalArgumentException("size mismatch");
+		double[] a = batchActivation.data();
+		double[] e = batchError.data();
+		double[] up = upStream.batchError.data();
+		for(int i = 0; i < a.length; i++)
+		{
+			up[i] = e[i] * (1.0 - a[i] * a[i]);
 		}
 	}
 
@@ -435,6 +882,16 @@ class LayerTanh extends Layer
 	}
 
 
+	void descendGradient(double[] in, double learningRate)
+	{
+	}
+
+
+	void descendGradientBatch(Matrix in, double learningRate)
+	{
+	}
+
+
 	void step(double stepSize)
 	{
 	}
@@ -31,6 +31,16 @@ public class Main {
 
 	public static void main(String[] args) throws Exception {
 
+		// Optional command-line switches
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-simd")) {
+				if(!Vec.useSimd(true))
+					System.out.println("SIMD kernels are not available. (Build with \"make buildsimd\", and run with --add-modules jdk.incubator.vector.) Using scalar kernels.");
+			}
+			else
+				throw new IllegalArgumentException("Unrecognized option: " + args[i]);
+		}
+
 		Random r = new Random(0);
 		
 		// Make a list of agents
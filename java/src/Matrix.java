@@ -10,6 +10,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.lang.StringBuilder;
 
@@ -19,6 +20,12 @@ import java.lang.StringBuilder;
 /// corresponding zero-indexed enumeration value. For convenience,
 /// the matrix also stores some meta-data which describes the columns (or attributes)
 /// in the matrix.
+///
+/// A matrix may alternatively be "dense", in which case all of its elements are stored
+/// in a single row-major array. Dense matrices have a fixed number of rows, and their rows
+/// cannot be referenced as separate arrays. Instead, use data() together with rowStart(i).
+/// A dense matrix may also be single-precision, in which case its elements are stored as
+/// floats in dataF(). (Values are rounded to float precision when they are set.)
 public class Matrix
 {
 	/// Used to represent elements in the matrix for which the value is not known.
@@ -26,6 +33,10 @@ public class Matrix
 
 	// Data
 	private ArrayList<double[]> m_data = new ArrayList<double[]>(); //matrix elements
+	private double[] m_flat;                               // contiguous row-major elements (non-null only when dense)
+	private float[] m_flatF;                               // contiguous row-major elements (non-null only when dense and single-precision)
+	private int m_rows;                                    // the number of rows in m_flat
+	private int m_stride;                                  // the distance between the starts of consecutive rows in m_flat
 
 	// Meta-data
 	private String m_filename;                          // the name of the file
@@ -59,9 +70,37 @@ public class Matrix
 	}
 
 
+	/// Makes a rows-by-cols matrix. If dense is true, all of the elements will be
+	/// stored contiguously in a single row-major array.
+	public Matrix(int rows, int cols, boolean dense)
+	{
+		this(rows, cols, dense, false);
+	}
+
+
+	/// Makes a rows-by-cols matrix. If singlePrecision is true, the elements will be stored
+	/// contiguously as floats. Otherwise, if dense is true, they will be stored contiguously as doubles.
+	public Matrix(int rows, int cols, boolean dense, boolean singlePrecision)
+	{
+		this.m_filename    = "";
+		this.m_attr_name   = new ArrayList<String>();
+		this.m_str_to_enum = new ArrayList<HashMap<String, Integer>>();
+		this.m_enum_to_str = new ArrayList<HashMap<Integer, String>>();
+		if(singlePrecision)
+			m_flatF = new float[0];
+		else if(dense)
+			m_flat = new double[0];
+		setSize(rows, cols);
+	}
+
+
 	public Matrix(Matrix that)
 	{
 		m_filename = that.m_filename;
+		if(that.isSinglePrecision())
+			m_flatF = new float[0];
+		else if(that.isDense())
+			m_flat = new double[0];
 		m_attr_name = new ArrayList<String>();
 		m_str_to_enum = new ArrayList<HashMap<String, Integer>>();
 		m_enum_to_str = new ArrayList<HashMap<Integer, String>>();
@@ -72,16 +111,37 @@ public class Matrix
 
 	public Matrix(Json n)
 	{
+		this(n, false);
+	}
+
+
+	/// Unmarshals from a JSON DOM. If dense is true, the elements will be stored contiguously.
+	public Matrix(Json n, boolean dense)
+	{
+		this(n, dense, false);
+	}
+
+
+	/// Unmarshals from a JSON DOM into a matrix with the specified storage. (See Matrix(int, int, boolean, boolean).)
+	public Matrix(Json n, boolean dense, boolean singlePrecision)
+	{
+		m_filename = "";
+		m_attr_name = new ArrayList<String>();
+		m_str_to_enum = new ArrayList<HashMap<String, Integer>>();
+		m_enum_to_str = new ArrayList<HashMap<Integer, String>>();
+		if(singlePrecision)
+			m_flatF = new float[0];
+		else if(dense)
+			m_flat = new double[0];
 		int rowCount = n.size();
 		int colCount = n.get(0).size();
 		setSize(rowCount, colCount);
 		for(int i = 0; i < rowCount; i++)
 		{
-			double[] mrow = row(i);
 			Json jrow = n.get(i);
 			for(int j = 0; j < colCount; j++)
 			{
-				mrow[j] = jrow.getDouble(j);
+				set(i, j, jrow.getDouble(j));
 			}
 		}
 	}
@@ -91,7 +151,17 @@ public class Matrix
 	{
 		Json list = Json.newList();
 		for(int i = 0; i < rows(); i++)
-			list.add(Vec.marshal(row(i)));
+		{
+			if(isDense())
+			{
+				Json jrow = Json.newList();
+				for(int j = 0; j < m_stride; j++)
+					jrow.add(get(i, j));
+				list.add(jrow);
+			}
+			else
+				list.add(Vec.marshal(row(i)));
+		}
 		return list;
 	}
 
@@ -107,6 +177,8 @@ public class Matrix
 		m_str_to_enum.clear();
 		m_enum_to_str.clear();
 		m_attr_name.clear();
+		m_flat = null; // ARFF files are always loaded into separate rows
+		m_flatF = null;
 
 		try
 		{
@@ -215,7 +287,7 @@ public class Matrix
 		{
 			if(j > 0)
 				sb.append("\n");
-			sb.append(Vec.toString(row(j)));
+			sb.append(Vec.toString(isDense() ? copyRow(j) : row(j)));
 		}
 		return sb.toString();
 	}
@@ -260,18 +332,18 @@ public class Matrix
 			os.println("@DATA");
 			for (int i = 0; i < rows(); i++)
 			{
-				double[] row = m_data.get(i);
 				for (int j = 0; j < cols(); j++)
 				{
-					if (row[j] == UNKNOWN_VALUE)
+					double v = get(i, j);
+					if (v == UNKNOWN_VALUE)
 						os.print("?");
 					else
 					{
 						int vals = valueCount(j);
-						if (vals == 0) os.print(row[j]);
+						if (vals == 0) os.print(v);
 						else
 						{
-							int val = (int)row[j];
+							int val = (int)v;
 							if (val >= vals) throw new IllegalArgumentException("Value out of range.");
 							os.print(attrValue(j, val));
 						}
@@ -294,7 +366,7 @@ public class Matrix
 
 	/// Makes a rows-by-columns matrix of *ALL CONTINUOUS VALUES*.
 	/// This method wipes out any data currently in the matrix. It also
-	/// wipes out any meta-data.
+	/// wipes out any meta-data. (A dense matrix remains dense.)
 	public void setSize(int rows, int cols)
 	{
 		m_data.clear();
@@ -307,7 +379,20 @@ public class Matrix
 
 		// Make space for each of the columns, then each of the rows
 		newColumns(cols);
-		newRows(rows);
+		if(isSinglePrecision())
+		{
+			m_flatF = new float[rows * cols];
+			m_rows = rows;
+			m_stride = cols;
+		}
+		else if(isDense())
+		{
+			m_flat = new double[rows * cols];
+			m_rows = rows;
+			m_stride = cols;
+		}
+		else
+			newRows(rows);
 	}
 
 	/// Clears this matrix and copies the meta-data from that matrix.
@@ -318,6 +403,8 @@ public class Matrix
 	public void copyMetaData(Matrix that)
 	{
 		m_data.clear();
+		if(isDense())
+			clearDense();
 		m_attr_name = new ArrayList<String>(that.m_attr_name);
 		
 		// Make a deep copy of that.m_str_to_enum
@@ -349,6 +436,8 @@ public class Matrix
 	public void newColumn(int vals)
 	{
 		m_data.clear();
+		if(isDense())
+			clearDense();
 		String name = "col_" + cols();
 		
 		m_attr_name.add(name);
@@ -386,6 +475,7 @@ public class Matrix
 	/// Adds one new row to this matrix. Returns a reference to the new row.
 	public double[] newRow()
 	{
+		requireRows();
 		int c = cols();
 		if (c == 0)
 			throw new IllegalArgumentException("You must add some columns before you add any rows.");
@@ -398,6 +488,7 @@ public class Matrix
 	/// Adds one new row to this matrix at the specified location. Returns a reference to the new row.
 	public double[] insertRow(int i)
 	{
+		requireRows();
 		int c = cols();
 		if (c == 0)
 			throw new IllegalArgumentException("You must add some columns before you add any rows.");
@@ -410,6 +501,7 @@ public class Matrix
 	/// Removes the specified row from this matrix. Returns a reference to the removed row.
 	public double[] removeRow(int i)
 	{
+		requireRows();
 		return m_data.remove(i);
 	}
 
@@ -417,6 +509,7 @@ public class Matrix
 	/// Appends the specified row to this matrix.
 	public void takeRow(double[] row)
 	{
+		requireRows();
 		if(row.length != cols())
 			throw new IllegalArgumentException("Row size differs from the number of columns in this matrix.");
 		m_data.add(row);
@@ -431,8 +524,26 @@ public class Matrix
 	}
 
 
+	/// Empties a dense matrix
+	private void clearDense()
+	{
+		if(isSinglePrecision())
+			m_flatF = new float[0];
+		else
+			m_flat = new double[0];
+		m_rows = 0;
+		m_stride = cols();
+	}
+
+	/// Throws if the rows of this matrix are not stored as separate arrays
+	private void requireRows()
+	{
+		if(isDense())
+			throw new IllegalStateException("The rows of a dense matrix are not separate arrays. Use data() and rowStart().");
+	}
+
 	/// Returns the number of rows in the matrix
-	public int rows() { return m_data.size(); }
+	public int rows() { return isDense() ? m_rows : m_data.size(); }
 	
 	/// Returns the number of columns (or attributes) in the matrix
 	public int cols() { return m_attr_name.size(); }
@@ -449,12 +560,113 @@ public class Matrix
 		else return value;
 	}
 	
-	/// Returns a reference to the specified row
-	public double[] row(int index) { return m_data.get(index); }
-	
+	/// Returns a reference to the specified row. (Not available for dense matrices.)
+	public double[] row(int index) { requireRows(); return m_data.get(index); }
+
+	/// Returns a reference to the specified row if this matrix stores separate rows. Otherwise,
+	/// copies the row into buf and returns buf. (Use setRow to write changes back.)
+	public double[] row(int index, double[] buf)
+	{
+		if(!isDense())
+			return m_data.get(index);
+		for(int j = 0; j < m_stride; j++)
+			buf[j] = get(index, j);
+		return buf;
+	}
+
+	/// Copies src into the specified row. (If src is that row, this does nothing.)
+	public void setRow(int index, double[] src)
+	{
+		if(src.length != cols())
+			throw new IllegalArgumentException("Row size differs from the number of columns in this matrix.");
+		if(isSinglePrecision())
+		{
+			int start = rowStart(index);
+			for(int j = 0; j < src.length; j++)
+				m_flatF[start + j] = (float)src[j];
+		}
+		else if(isDense())
+			System.arraycopy(src, 0, m_flat, rowStart(index), src.length);
+		else
+		{
+			double[] dest = m_data.get(index);
+			if(dest != src)
+				System.arraycopy(src, 0, dest, 0, src.length);
+		}
+	}
+
+	/// Returns true iff the elements of this matrix are stored contiguously
+	public boolean isDense() { return m_flat != null || m_flatF != null; }
+
+	/// Returns true iff the elements of this matrix are stored contiguously as floats
+	public boolean isSinglePrecision() { return m_flatF != null; }
+
+	/// Returns the contiguous row-major element array of a dense double-precision matrix
+	public double[] data()
+	{
+		if(m_flat == null)
+			throw new IllegalStateException(isSinglePrecision() ? "This matrix is single-precision. Use dataF()." : "This matrix is not dense");
+		return m_flat;
+	}
+
+	/// Returns the contiguous row-major element array of a single-precision matrix
+	public float[] dataF()
+	{
+		if(m_flatF == null)
+			throw new IllegalStateException("This matrix is not single-precision");
+		return m_flatF;
+	}
+
+	/// Returns the distance between the starts of consecutive rows in data()
+	public int stride() { if(!isDense()) throw new IllegalStateException("This matrix is not dense"); return m_stride; }
+
+	/// Returns the position in data() where the specified row begins
+	public int rowStart(int index) { return m_stride * index; }
+
+	/// Returns the element at the specified row and column
+	public double get(int r, int c)
+	{
+		if(m_flat != null)
+			return m_flat[m_stride * r + c];
+		else if(m_flatF != null)
+			return m_flatF[m_stride * r + c];
+		else
+			return m_data.get(r)[c];
+	}
+
+	/// Sets the element at the specified row and column
+	public void set(int r, int c, double val)
+	{
+		if(m_flat != null)
+			m_flat[m_stride * r + c] = val;
+		else if(m_flatF != null)
+			m_flatF[m_stride * r + c] = (float)val;
+		else
+			m_data.get(r)[c] = val;
+	}
+
+	/// Returns a copy of the specified row
+	public double[] copyRow(int index)
+	{
+		double[] dest = new double[cols()];
+		for(int j = 0; j < dest.length; j++)
+			dest[j] = get(index, j);
+		return dest;
+	}
+
 	/// Swaps the positions of the two specified rows
 	public void swapRows(int a, int b)
 	{
+		if(isDense())
+		{
+			for(int j = 0; j < m_stride; j++)
+			{
+				double t = get(a, j);
+				set(a, j, get(b, j));
+				set(b, j, t);
+			}
+			return;
+		}
 		double[] temp = m_data.get(a);
 		m_data.set(a, m_data.get(b));
 		m_data.set(b, temp);
@@ -476,9 +688,9 @@ public class Matrix
 	{
 		double sum = 0.0;
 		int count = 0;
-		for (double[] list : m_data)
+		for (int i = 0; i < rows(); i++)
 		{
-			double val = list[col];
+			double val = get(i, col);
 			if (val != UNKNOWN_VALUE)
 			{
 				sum += val;
@@ -493,9 +705,9 @@ public class Matrix
 	public double columnMin(int col)
 	{
 		double min = Double.MAX_VALUE;
-		for (double[] list : m_data)
+		for (int i = 0; i < rows(); i++)
 		{
-			double val = list[col];
+			double val = get(i, col);
 			if (val != UNKNOWN_VALUE)
 				min = Math.min(min, val);
 		}
@@ -507,9 +719,9 @@ public class Matrix
 	public double columnMax(int col)
 	{
 		double max = -Double.MAX_VALUE;
-		for (double[] list : m_data)
+		for (int i = 0; i < rows(); i++)
 		{
-			double val = list[col];
+			double val = get(i, col);
 			if (val != UNKNOWN_VALUE)
 				max = Math.max(max, val);
 		}
@@ -521,9 +733,9 @@ public class Matrix
 	public double mostCommonValue(int col)
 	{
 		HashMap<Double, Integer> counts = new HashMap<Double, Integer>();
-		for (double[] list : m_data)
+		for (int i = 0; i < rows(); i++)
 		{
-			double val = list[col];
+			double val = get(i, col);
 			if (val != UNKNOWN_VALUE)
 			{
 				Integer result = counts.get(val);
@@ -566,16 +778,38 @@ public class Matrix
 		// Copy the specified region of data
 		for (int i = 0; i < rowCount; i++)
 		{
-			double[] source = that.row(rowBegin + i);
-			double[] dest = this.row(destRow + i);
-			for(int j = 0; j < colCount; j++)
-				dest[destCol + j] = source[colBegin + j];
+			if(this.m_flat != null && that.m_flat != null)
+				System.arraycopy(that.m_flat, that.rowStart(rowBegin + i) + colBegin, this.m_flat, this.rowStart(destRow + i) + destCol, colCount);
+			else if(this.m_flatF != null && that.m_flatF != null)
+				System.arraycopy(that.m_flatF, that.rowStart(rowBegin + i) + colBegin, this.m_flatF, this.rowStart(destRow + i) + destCol, colCount);
+			else if(this.isDense() || that.isDense())
+			{
+				for(int j = 0; j < colCount; j++)
+					set(destRow + i, destCol + j, that.get(rowBegin + i, colBegin + j));
+			}
+			else
+			{
+				double[] source = that.row(rowBegin + i);
+				double[] dest = this.row(destRow + i);
+				for(int j = 0; j < colCount; j++)
+					dest[destCol + j] = source[colBegin + j];
+			}
 		}
 	}
 	
 	/// Sets every element in the matrix to the specified value.
 	public void setAll(double val)
 	{
+		if(isSinglePrecision())
+		{
+			Arrays.fill(m_flatF, (float)val);
+			return;
+		}
+		else if(isDense())
+		{
+			Arrays.fill(m_flat, val);
+			return;
+		}
 		for (double[] vec : m_data)
 		{
 			for(int i = 0; i < vec.length; i++)
@@ -587,6 +821,17 @@ public class Matrix
 	/// Sets every element in the matrix to the specified value.
 	public void scale(double scalar)
 	{
+		if(isSinglePrecision())
+		{
+			for(int i = 0; i < m_flatF.length; i++)
+				m_flatF[i] *= scalar;
+			return;
+		}
+		else if(isDense())
+		{
+			Vec.scale(m_flat, scalar);
+			return;
+		}
 		for (double[] vec : m_data)
 		{
 			for(int i = 0; i < vec.length; i++)
@@ -600,11 +845,25 @@ public class Matrix
 	{
 		if(that.rows() != this.rows() || that.cols() != this.cols())
 			throw new IllegalArgumentException("Mismatching size");
+		if(this.m_flat != null && that.m_flat != null)
+		{
+			Vec.addScaled(this.m_flat, 0, that.m_flat, 0, m_rows * m_stride, scalar);
+			return;
+		}
+		else if(this.m_flatF != null && that.m_flatF != null)
+		{
+			Vec.addScaled(this.m_flatF, 0, that.m_flatF, 0, m_rows * m_stride, (float)scalar);
+			return;
+		}
 		for (int i = 0; i < rows(); i++)
 		{
-			double[] dest = this.row(i);
-			double[] src = that.row(i);
-			Vec.addScaled(dest, src, scalar);
+			if(this.isDense() || that.isDense())
+			{
+				for(int j = 0; j < cols(); j++)
+					set(i, j, get(i, j) + scalar * that.get(i, j));
+			}
+			else
+				Vec.addScaled(this.row(i), that.row(i), scalar);
 		}
 	}
 
@@ -615,7 +874,7 @@ public class Matrix
 		setAll(0.0);
 		int m = Math.min(cols(), rows());
 		for(int i = 0; i < m; i++)
-			row(i)[i] = 1.0;
+			set(i, i, 1.0);
 	}
 
 	/// Throws an exception if that has a different number of columns than
@@ -52,6 +52,35 @@ public class NeuralNet
 	}
 
 
+	/// Copies the weights and biases from that network, which must have the same topology.
+	/// (Nothing is allocated.)
+	void copyWeights(NeuralNet that)
+	{
+		if(that.layers.size() != layers.size())
+			throw new IllegalArgumentException("mismatching topology");
+		for(int i = 0; i < layers.size(); i++)
+		{
+			Layer lay = layers.get(i);
+			if(lay instanceof LayerLinear)
+				((LayerLinear)lay).copy((LayerLinear)that.layers.get(i));
+		}
+	}
+
+
+	/// Returns true iff that has the same layers as this network, with exactly the same weights
+	boolean hasSameWeights(NeuralNet that)
+	{
+		if(that.layers.size() != layers.size())
+			return false;
+		for(int i = 0; i < layers.size(); i++)
+		{
+			if(!layers.get(i).sameWeights(that.layers.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+
 	/// Initializes the weights and biases with small random values
 	void init(Random r)
 	{
@@ -85,6 +114,62 @@ public class NeuralNet
 	}
 
 
+	/// Makes a new context for evaluating this network. (Use one context per thread.)
+	InferenceContext newContext()
+	{
+		return new InferenceContext(this);
+	}
+
+
+	/// Like forwardProp, but uses the buffers in ctx instead of those in the layers
+	double[] forwardProp(InferenceContext ctx, double[] in)
+	{
+		for(int i = 0; i < layers.size(); i++)
+		{
+			in = layers.get(i).forwardProp(in, ctx.activation[i], ctx.scratch[i]);
+		}
+		return in;
+	}
+
+
+	/// Like forwardProp2, but uses the buffers in ctx instead of those in the layers
+	double[] forwardProp2(InferenceContext ctx, double[] in1, double[] in2)
+	{
+		double[] in = ((LayerLinear)layers.get(0)).forwardProp2(in1, in2, ctx.activation[0], ctx.scratch[0]);
+		for(int i = 1; i < layers.size(); i++)
+		{
+			in = layers.get(i).forwardProp(in, ctx.activation[i], ctx.scratch[i]);
+		}
+		return in;
+	}
+
+
+	/// Feeds the first "patterns" rows of "in" (a dense matrix) into this neural network, using the batch buffers in ctx.
+	/// Returns a matrix whose first "patterns" rows hold the predicted outputs. Nothing is allocated once
+	/// ctx has grown to hold that many patterns. Each row matches forwardProp exactly.
+	Matrix forwardPropBatch(InferenceContext ctx, Matrix in, int patterns)
+	{
+		ctx.ensureBatchCapacity(patterns);
+		for(int i = 0; i < layers.size(); i++)
+		{
+			layers.get(i).forwardPropBatch(in, patterns, ctx.batchActivation[i]);
+			in = ctx.batchActivation[i];
+		}
+		return in;
+	}
+
+
+	/// Feeds every row of "in" (a dense matrix) into this neural network. Returns a matrix of predicted outputs, one row per pattern.
+	Matrix forwardPropBatch(Matrix in)
+	{
+		for(int i = 0; i < layers.size(); i++)
+		{
+			in = layers.get(i).forwardPropBatch(in);
+		}
+		return in;
+	}
+
+
 	/// Backpropagates the error to the upstream layer.
 	void backProp(double[] target)
 	{
@@ -100,6 +185,48 @@ public class NeuralNet
 	}
 
 
+	/// Like backProp, but uses the buffers in ctx instead of those in the layers
+	void backProp(InferenceContext ctx, double[] target)
+	{
+		int i = layers.size() - 1;
+		layers.get(i).computeError(target, ctx.activation[i], ctx.error[i]);
+		for(; i > 0; i--)
+		{
+			layers.get(i).backProp(ctx.activation[i], ctx.error[i], ctx.error[i - 1], ctx.scratch[i]);
+		}
+	}
+
+
+	/// Backpropagates outError (the gradient of some objective with respect to the outputs of the most
+	/// recent forward propagation with ctx) all the way back to the inputs, and puts the gradient with
+	/// respect to the inputs in inGrad.
+	void backPropToInputs(InferenceContext ctx, double[] outError, double[] inGrad)
+	{
+		int i = layers.size() - 1;
+		Vec.copy(ctx.error[i], outError);
+		for(; i > 0; i--)
+		{
+			layers.get(i).backProp(ctx.activation[i], ctx.error[i], ctx.error[i - 1], ctx.scratch[i]);
+		}
+		layers.get(0).backProp(ctx.activation[0], ctx.error[0], inGrad, ctx.scratch[0]);
+	}
+
+
+	/// Backpropagates the error of every pattern in the most recent batch.
+	void backPropBatch(Matrix target)
+	{
+		int i = layers.size() - 1;
+		Layer l = layers.get(i);
+		l.computeErrorBatch(target);
+		for(i--; i >= 0; i--)
+		{
+			Layer upstream = layers.get(i);
+			l.backPropBatch(upstream);
+			l = upstream;
+		}
+	}
+
+
 	/// Backpropagates the error from another neural network. (This is used when training autoencoders.)
 	void backPropFromDecoder(NeuralNet decoder)
 	{
@@ -117,20 +244,43 @@ public class NeuralNet
 	}
 
 
-	/// Updates the weights and biases
+	/// Backpropagates the batch error from another neural network. (This is used when training autoencoders.)
+	void backPropFromDecoderBatch(NeuralNet decoder)
+	{
+		Layer l = decoder.layers.get(0);
+		for(int i = layers.size() - 1; i >= 0; i--)
+		{
+			Layer upstream = layers.get(i);
+			l.backPropBatch(upstream);
+			l = upstream;
+		}
+	}
+
+
+	/// Updates the weights and biases with one momentum-free step of stochastic gradient descent
 	void descendGradient(double[] in, double learningRate)
 	{
 		for(int i = 0; i < layers.size(); i++)
 		{
 			Layer l = layers.get(i);
-			l.scaleGradient(0.0);
-			l.updateGradient(in);
-			l.step(learningRate);
+			l.descendGradient(in, learningRate);
 			in = l.activation;
 		}
 	}
 
 
+	/// Updates the weights and biases with the gradient of every pattern in the batch
+	void descendGradientBatch(Matrix in, double learningRate)
+	{
+		for(int i = 0; i < layers.size(); i++)
+		{
+			Layer l = layers.get(i);
+			l.descendGradientBatch(in, learningRate);
+			in = l.batchActivation;
+		}
+	}
+
+
 	/// Keeps the weights and biases from getting too big
 	void regularize(double amount)
 	{
@@ -142,6 +292,32 @@ public class NeuralNet
 	}
 
 
+	/// Makes regularize defer its work until the accumulated shrinkage reaches tolerance,
+	/// so its per-pattern cost no longer depends on the number of weights. Pass 0 to regularize eagerly.
+	void setRegularizationTolerance(double tolerance)
+	{
+		flushRegularization();
+		for(int i = 0; i < layers.size(); i++)
+		{
+			Layer lay = layers.get(i);
+			if(lay instanceof LayerLinear)
+				((LayerLinear)lay).regTolerance = tolerance;
+		}
+	}
+
+
+	/// Applies any regularization that has been deferred
+	void flushRegularization()
+	{
+		for(int i = 0; i < layers.size(); i++)
+		{
+			Layer lay = layers.get(i);
+			if(lay instanceof LayerLinear)
+				((LayerLinear)lay).flushRegularization();
+		}
+	}
+
+
 	/// Refines the weights and biases with on iteration of stochastic gradient descent.
 	void trainIncremental(double[] in, double[] target, double learningRate)
 	{
@@ -152,6 +328,19 @@ public class NeuralNet
 	}
 
 
+	/// Refines the weights and biases with one minibatch step. "in" and "target" are dense matrices with one row per pattern.
+	/// The gradients of the patterns are summed (not averaged), so one step on a batch of n patterns
+	/// moves about as far as n incremental steps would.
+	void trainBatch(Matrix in, Matrix target, double learningRate)
+	{
+		if(in.rows() != target.rows())
+			throw new IllegalArgumentException("mismatching number of patterns");
+		forwardPropBatch(in);
+		backPropBatch(target);
+		descendGradientBatch(in, learningRate);
+	}
+
+
 	/// Refines "in" with one iteration of stochastic gradient descent.
 	void refineInputs(double[] in, double[] target, double learningRate)
 	{
@@ -161,16 +350,25 @@ public class NeuralNet
 	}
 
 
+	/// Like refineInputs, but uses the buffers in ctx instead of those in the layers
+	void refineInputs(InferenceContext ctx, double[] in, double[] target, double learningRate)
+	{
+		forwardProp(ctx, in);
+		backProp(ctx, target);
+		((LayerLinear)layers.get(0)).refineInputs(ctx.error[0], in, learningRate, ctx.scratch[0]);
+	}
+
+
 	static void testMath()
 	{
 		NeuralNet nn = new NeuralNet();
 		LayerLinear l1 = new LayerLinear(2, 3);
-		l1.weights.row(0)[0] = 0.1;
-		l1.weights.row(0)[1] = 0.0;
-		l1.weights.row(0)[2] = 0.1;
-		l1.weights.row(1)[0] = 0.1;
-		l1.weights.row(1)[1] = 0.0;
-		l1.weights.row(1)[2] = -0.1;
+		l1.weights.set(0, 0, 0.1);
+		l1.weights.set(0, 1, 0.0);
+		l1.weights.set(0, 2, 0.1);
+		l1.weights.set(1, 0, 0.1);
+		l1.weights.set(1, 1, 0.0);
+		l1.weights.set(1, 2, -0.1);
 		l1.bias[0] = 0.1;
 		l1.bias[1] = 0.1;
 		l1.bias[2] = 0.0;
@@ -178,12 +376,12 @@ public class NeuralNet
 		nn.layers.add(new LayerTanh(3));
 
 		LayerLinear l2 = new LayerLinear(3, 2);
-		l2.weights.row(0)[0] = 0.1;
-		l2.weights.row(0)[1] = 0.1;
-		l2.weights.row(1)[0] = 0.1;
-		l2.weights.row(1)[1] = 0.3;
-		l2.weights.row(2)[0] = 0.1;
-		l2.weights.row(2)[1] = -0.1;
+		l2.weights.set(0, 0, 0.1);
+		l2.weights.set(0, 1, 0.1);
+		l2.weights.set(1, 0, 0.1);
+		l2.weights.set(1, 1, 0.3);
+		l2.weights.set(2, 0, 0.1);
+		l2.weights.set(2, 1, -0.1);
 		l2.bias[0] = 0.1;
 		l2.bias[1] = -0.2;
 		nn.layers.add(l2);
@@ -216,12 +414,228 @@ public class NeuralNet
 		System.out.println("l2 weights:" + l2.weights.toString());
 		System.out.println("l2 bias:" + Vec.toString(l2.bias));
 
-		if(Math.abs(l1.weights.row(0)[0] - 0.10039573704287) > 0.0000000001)
+		if(Math.abs(l1.weights.get(0, 0) - 0.10039573704287) > 0.0000000001)
 			throw new IllegalArgumentException("failed");
-		if(Math.abs(l1.weights.row(0)[1] - 0.0013373814241446) > 0.0000000001)
+		if(Math.abs(l1.weights.get(0, 1) - 0.0013373814241446) > 0.0000000001)
 			throw new IllegalArgumentException("failed");
 		if(Math.abs(l1.bias[1] - 0.10445793808048) > 0.0000000001)
 			throw new IllegalArgumentException("failed");
 		System.out.println("passed");
 	}
+
+
+	/// Checks that several threads can evaluate one network concurrently
+	static void testContexts() throws InterruptedException
+	{
+		Random r = new Random(1234);
+		final NeuralNet nn = new NeuralNet();
+		nn.layers.add(new LayerLinear(6, 20));
+		nn.layers.add(new LayerTanh(20));
+		nn.layers.add(new LayerLinear(20, 4));
+		nn.layers.add(new LayerTanh(4));
+		nn.init(r);
+
+		// Compute the expected results on this thread
+		final Matrix in = new Matrix(200, 6, true);
+		final Matrix targ = new Matrix(200, 4, true);
+		for(int i = 0; i < in.data().length; i++)
+			in.data()[i] = r.nextGaussian();
+		for(int i = 0; i < targ.data().length; i++)
+			targ.data()[i] = 0.5 * r.nextGaussian();
+		final Matrix expectedOut = new Matrix(200, 4, true);
+		final Matrix expectedRefined = new Matrix(200, 6, true);
+		for(int i = 0; i < in.rows(); i++)
+		{
+			expectedOut.setRow(i, nn.forwardProp(in.copyRow(i)));
+			double[] x = in.copyRow(i);
+			nn.refineInputs(x, targ.copyRow(i), 0.1);
+			expectedRefined.setRow(i, x);
+		}
+
+		// Repeat them on several threads at once
+		final boolean[] ok = new boolean[4];
+		Thread[] threads = new Thread[ok.length];
+		for(int t = 0; t < threads.length; t++)
+		{
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					InferenceContext ctx = nn.newContext();
+					boolean good = true;
+					for(int rep = 0; rep < 50; rep++)
+					{
+						for(int i = 0; i < in.rows(); i++)
+						{
+							double[] out = nn.forwardProp(ctx, in.copyRow(i));
+							if(Vec.squaredDistance(out, expectedOut.copyRow(i)) != 0.0)
+								good = false;
+							double[] x = in.copyRow(i);
+							nn.refineInputs(ctx, x, targ.copyRow(i), 0.1);
+							if(Vec.squaredDistance(x, expectedRefined.copyRow(i)) != 0.0)
+								good = false;
+						}
+					}
+					ok[id] = good;
+				}
+			};
+			threads[t].start();
+		}
+		for(int t = 0; t < threads.length; t++)
+		{
+			threads[t].join();
+			if(!ok[t])
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that the batched kernels agree with the incremental ones
+	static void testBatch()
+	{
+		for(int p = 0; p < 2; p++)
+		{
+			boolean single = (p == 1);
+			Random r = new Random(1234);
+			NeuralNet nn = new NeuralNet();
+			nn.layers.add(new LayerLinear(5, 7, single));
+			nn.layers.add(new LayerTanh(7));
+			nn.layers.add(new LayerLinear(7, 3, single));
+			nn.layers.add(new LayerTanh(3));
+			nn.init(r);
+			NeuralNet nn2 = new NeuralNet(nn);
+			Matrix in = new Matrix(4, 5, true);
+			Matrix targ = new Matrix(4, 3, true);
+			for(int i = 0; i < in.data().length; i++)
+				in.data()[i] = r.nextGaussian();
+			for(int i = 0; i < targ.data().length; i++)
+				targ.data()[i] = 0.5 * r.nextGaussian();
+
+			// A batched forward pass must match the incremental one exactly
+			Matrix out = nn.forwardPropBatch(in);
+			for(int b = 0; b < in.rows(); b++)
+			{
+				double[] pred = nn2.forwardProp(in.copyRow(b));
+				for(int i = 0; i < pred.length; i++)
+				{
+					if(pred[i] != out.get(b, i))
+						throw new IllegalArgumentException("failed");
+				}
+			}
+
+			// Batches of one pattern must match incremental steps exactly
+			Matrix in1 = new Matrix(1, 5, true);
+			Matrix targ1 = new Matrix(1, 3, true);
+			for(int k = 0; k < 50; k++)
+			{
+				int b = k % in.rows();
+				in1.copyBlock(0, 0, in, b, 0, 1, 5);
+				targ1.copyBlock(0, 0, targ, b, 0, 1, 3);
+				nn.trainBatch(in1, targ1, 0.03);
+				nn2.trainIncremental(in.copyRow(b), targ.copyRow(b), 0.03);
+			}
+			if(!nn.hasSameWeights(nn2))
+				throw new IllegalArgumentException("failed");
+
+			// Training on batches must reduce the error
+			double before = Vec.squaredDistance(nn.forwardPropBatch(in).data(), targ.data());
+			for(int i = 0; i < 200; i++)
+				nn.trainBatch(in, targ, 0.03);
+			double after = Vec.squaredDistance(nn.forwardPropBatch(in).data(), targ.data());
+			if(after >= before)
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that deferred regularization stays close to eager regularization
+	static void testLazyRegularization()
+	{
+		Random r = new Random(1234);
+		NeuralNet nn = new NeuralNet();
+		nn.layers.add(new LayerLinear(5, 7));
+		nn.layers.add(new LayerTanh(7));
+		nn.layers.add(new LayerLinear(7, 3));
+		nn.layers.add(new LayerTanh(3));
+		nn.init(r);
+		NeuralNet nn2 = new NeuralNet(nn);
+		nn2.setRegularizationTolerance(0.0001);
+		double[] in = new double[5];
+		double[] targ = new double[3];
+		for(int i = 0; i < 5000; i++)
+		{
+			for(int j = 0; j < in.length; j++)
+				in[j] = r.nextGaussian();
+			for(int j = 0; j < targ.length; j++)
+				targ[j] = 0.5 * Math.tanh(in[j] + in[j + 1]);
+			nn.regularize(0.00001);
+			nn.trainIncremental(in, targ, 0.01);
+			nn2.regularize(0.00001);
+			nn2.trainIncremental(in, targ, 0.01);
+		}
+		nn2.flushRegularization();
+		for(int i = 0; i < nn.layers.size(); i += 2)
+		{
+			LayerLinear a = (LayerLinear)nn.layers.get(i);
+			LayerLinear b = (LayerLinear)nn2.layers.get(i);
+			if(Vec.squaredDistance(a.weights.data(), b.weights.data()) > 0.0001 || Vec.squaredDistance(a.bias, b.bias) > 0.0001)
+				throw new IllegalArgumentException("failed");
+			if(b.pendingShrink != 0.0)
+				throw new IllegalArgumentException("failed");
+		}
+
+		// Copying or marshaling applies the deferred regularization to the result, but leaves the source alone
+		nn2.regularize(0.00001);
+		LayerLinear first = (LayerLinear)nn2.layers.get(0);
+		double pending = first.pendingShrink;
+		double[] before = Vec.copy(first.weights.data());
+		NeuralNet copy = new NeuralNet(nn2);
+		NeuralNet restored = new NeuralNet(nn2.marshal());
+		NeuralNet copied = new NeuralNet(nn);
+		copied.copyWeights(nn2);
+		if(pending == 0.0 || first.pendingShrink != pending || Vec.squaredDistance(first.weights.data(), before) != 0.0)
+			throw new IllegalArgumentException("failed");
+		nn2.flushRegularization();
+		NeuralNet[] others = { copy, restored, copied };
+		for(int k = 0; k < others.length; k++)
+		{
+			for(int i = 0; i < nn2.layers.size(); i += 2)
+			{
+				LayerLinear a = (LayerLinear)nn2.layers.get(i);
+				LayerLinear b = (LayerLinear)others[k].layers.get(i);
+				if(Vec.squaredDistance(a.weights.data(), b.weights.data()) > 1e-20 || Vec.squaredDistance(a.bias, b.bias) > 1e-20)
+					throw new IllegalArgumentException("failed");
+			}
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that float weights decay about as much as double weights do, even when each step is far below float precision
+	static void testSinglePrecisionRegularization()
+	{
+		Random r = new Random(1234);
+		LayerLinear d = new LayerLinear(20, 10, false);
+		LayerLinear f = new LayerLinear(20, 10, true);
+		d.initWeights(r);
+		f.copy(d);
+		double[] start = Vec.copy(d.weights.data());
+		for(int i = 0; i < 100000; i++)
+		{
+			d.regularizeWeights(3e-9);
+			f.regularizeWeights(3e-9);
+		}
+		f.flushRegularization();
+		double[] dw = d.weights.data();
+		float[] fw = f.weights.dataF();
+		for(int i = 0; i < dw.length; i++)
+		{
+			double expected = start[i] - dw[i];
+			double actual = start[i] - fw[i];
+			if(Math.abs(expected) < 1e-4 || Math.abs(actual - expected) > 0.05 * Math.abs(expected))
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
 }
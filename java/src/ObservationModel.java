@@ -21,12 +21,32 @@ public class ObservationModel {
 	int trainIters;
 	int trainProgress;
 	int calibrationIters;
+	public double calibrationTolerance; // if > 0, calibration stops when an iteration improves the reconstruction error by less than this
+	public boolean adaptiveCalibration; // if true, calibration adapts its step size (growing it after each improvement, and halving it after each overshoot)
+	public int lastCalibrationIters; // the number of iterations the last call to calibrateBeliefs used
+	double lastCalibrationErr; // the reconstruction error of the beliefs that the last early-stopping calibration returned
+	public double encoderSeedWeight; // if > 0, calibration starts from this blend of the encoder's beliefs with the given beliefs
+	public int seededCalibrationIters; // the number of refinement iterations after seeding with the encoder
+	double[] calPoint; // the beliefs at which the decoder was last differentiated
+	double[] calAccepted; // the last beliefs that improved the reconstruction error
+	double[] calStep; // the (unclipped) step that was taken from calAccepted
 	public double learningRate;
+	boolean singlePrecision;
+	double[] obsBuf;
+	public int batchSize; // the number of patterns per training step (1 = incremental training)
+	Matrix batchObs;
+	public boolean incrementalValidation; // if true, the validation error is accumulated a few rows per training step instead of in one sweep
+	double validationErr1; // the accumulated squared error of the encoder and decoder
+	double validationErr2; // the accumulated squared error of the experimental nets
+	int validationCount; // the number of validation rows accumulated so far
+	int validationCursor; // the next validation row to accumulate
+	int promotions; // the number of times the experimental nets have replaced the encoder and decoder
+	ObservationTrainer trainer; // non-null when the autoencoder is trained on a background thread
 
 
-	/// General-purpose constructor
+	/// General-purpose constructor. If singlePrecision is true, the weights and the training buffers are stored as floats.
 	ObservationModel(TransitionModel transition, int observation_dims, int belief_dims, int decoder_layers,
-		int encoder_layers, int queue_size, int trainItersPerPattern, int calibrationIterations, Random r) {
+		int encoder_layers, int queue_size, int trainItersPerPattern, int calibrationIterations, boolean singlePrecision, Random r) {
 
 		if(belief_dims > observation_dims)
 			throw new IllegalArgumentException("observation_dims must be >= belief_dims");
@@ -35,17 +55,17 @@ public class ObservationModel {
 		rand = r;
 		int hidden = Math.max(30, (observation_dims + belief_dims) / 2);
 		encoder = new NeuralNet();
-		encoder.layers.add(new LayerLinear(observation_dims, hidden));
+		encoder.layers.add(new LayerLinear(observation_dims, hidden, singlePrecision));
 		encoder.layers.add(new LayerTanh(hidden));
-		encoder.layers.add(new LayerLinear(hidden, belief_dims));
+		encoder.layers.add(new LayerLinear(hidden, belief_dims, singlePrecision));
 		encoder.layers.add(new LayerTanh(belief_dims));
 		encoder.init(rand);
 
 		// Init the decoder
 		decoder = new NeuralNet();
-		decoder.layers.add(new LayerLinear(belief_dims, hidden));
+		decoder.layers.add(new LayerLinear(belief_dims, hidden, singlePrecision));
 		decoder.layers.add(new LayerTanh(hidden));
-		decoder.layers.add(new LayerLinear(hidden, observation_dims));
+		decoder.layers.add(new LayerLinear(hidden, observation_dims, singlePrecision));
 		decoder.layers.add(new LayerTanh(observation_dims));
 		decoder.init(rand);
 
@@ -54,14 +74,18 @@ public class ObservationModel {
 		encoderExperimental = new NeuralNet(encoder);
 
 		// Init the buffers
-		train = new Matrix(queue_size, observation_dims);
-		validation = new Matrix(queue_size, observation_dims);
+		this.singlePrecision = singlePrecision;
+		train = new Matrix(queue_size, observation_dims, singlePrecision, singlePrecision);
+		validation = new Matrix(queue_size, observation_dims, singlePrecision, singlePrecision);
+		obsBuf = new double[observation_dims];
 
 		// Init the meta-parameters
 		transitionModel = transition;
 		trainIters = trainItersPerPattern;
 		calibrationIters = calibrationIterations;
 		learningRate = 0.03;
+		batchSize = 1;
+		seededCalibrationIters = 20;
 	}
 
 
@@ -72,8 +96,10 @@ public class ObservationModel {
 		encoder = new NeuralNet(obj.get("encoder"));
 		decoderExperimental = new NeuralNet(obj.get("decoderExperimental"));
 		encoderExperimental = new NeuralNet(obj.get("encoderExperimental"));
-		train = new Matrix(obj.get("train"));
-		validation = new Matrix(obj.get("validation"));
+		singlePrecision = obj.has("singlePrecision") && obj.getBool("singlePrecision");
+		train = new Matrix(obj.get("train"), singlePrecision, singlePrecision);
+		validation = new Matrix(obj.get("validation"), singlePrecision, singlePrecision);
+		obsBuf = new double[train.cols()];
 		trainPos = (int)obj.getLong("trainPos");
 		trainSize = (int)obj.getLong("trainSize");
 		validationPos = (int)obj.getLong("validationPos");
@@ -82,6 +108,16 @@ public class ObservationModel {
 		trainProgress = (int)obj.getLong("trainProgress");
 		calibrationIters = (int)obj.getLong("calibrationIters");
 		learningRate = obj.getDouble("learningRate");
+		batchSize = obj.has("batchSize") ? (int)obj.getLong("batchSize") : 1;
+		calibrationTolerance = obj.has("calibrationTolerance") ? obj.getDouble("calibrationTolerance") : 0.0;
+		adaptiveCalibration = obj.has("adaptiveCalibration") && obj.getBool("adaptiveCalibration");
+		encoderSeedWeight = obj.has("encoderSeedWeight") ? obj.getDouble("encoderSeedWeight") : 0.0;
+		seededCalibrationIters = obj.has("seededCalibrationIters") ? (int)obj.getLong("seededCalibrationIters") : 20;
+		incrementalValidation = obj.has("incrementalValidation") && obj.getBool("incrementalValidation");
+		validationErr1 = obj.has("validationErr1") ? obj.getDouble("validationErr1") : 0.0;
+		validationErr2 = obj.has("validationErr2") ? obj.getDouble("validationErr2") : 0.0;
+		validationCount = obj.has("validationCount") ? (int)obj.getLong("validationCount") : 0;
+		validationCursor = obj.has("validationCursor") ? (int)obj.getLong("validationCursor") : 0;
 		transitionModel = transition;
 	}
 
@@ -103,6 +139,17 @@ public class ObservationModel {
 		obj.add("trainProgress", trainProgress);
 		obj.add("calibrationIters", calibrationIters);
 		obj.add("learningRate", learningRate);
+		obj.add("singlePrecision", singlePrecision);
+		obj.add("batchSize", batchSize);
+		obj.add("calibrationTolerance", calibrationTolerance);
+		obj.add("adaptiveCalibration", adaptiveCalibration);
+		obj.add("encoderSeedWeight", encoderSeedWeight);
+		obj.add("seededCalibrationIters", seededCalibrationIters);
+		obj.add("incrementalValidation", incrementalValidation);
+		obj.add("validationErr1", validationErr1);
+		obj.add("validationErr2", validationErr2);
+		obj.add("validationCount", validationCount);
+		obj.add("validationCursor", validationCursor);
 		return obj;
 	}
 
@@ -112,6 +159,43 @@ public class ObservationModel {
 	}
 
 
+	/// Moves the autoencoder training and the validation check to a background thread. After this is called,
+	/// trainIncremental only buffers and queues each observation, and the encoder and decoder only change
+	/// when syncBackgroundTraining is called. (The results depend on thread timing, so they are not reproducible.)
+	/// The background thread is not part of the marshaled state.
+	void startBackgroundTraining() {
+		if(trainer == null)
+			trainer = new ObservationTrainer(this);
+	}
+
+
+	/// Stops the background thread (if there is one), after it finishes the work already queued, and picks up
+	/// its experimental nets and any pending promotion. Training happens synchronously again after this is called.
+	void stopBackgroundTraining() {
+		if(trainer == null)
+			return;
+		trainer.waitUntilIdle();
+		syncBackgroundTraining();
+		trainer.stop();
+		encoderExperimental.copyWeights(trainer.shadow.encoderExperimental);
+		decoderExperimental.copyWeights(trainer.shadow.decoderExperimental);
+		trainProgress = trainer.shadow.trainProgress;
+		trainer = null;
+	}
+
+
+	/// Picks up the encoder and decoder that the background trainer most recently promoted, if it
+	/// promoted any, and resets the training buffer of the transition model to go with them.
+	/// This should be called at step boundaries, while nothing is using the model.
+	void syncBackgroundTraining() {
+		if(trainer != null && trainer.swap(this)) {
+			promotions++;
+			if(transitionModel != null)
+				transitionModel.resetTrainingBuffer();
+		}
+	}
+
+
 	/// Performs one pattern-presentation of stochastic gradient descent and dynamically tunes the learning rate
 	void doSomeTraining() {
 
@@ -119,7 +203,7 @@ public class ObservationModel {
 		decoderExperimental.regularize(learningRate * 0.00001);
 		encoderExperimental.regularize(learningRate * 0.00001);
 		int index = rand.nextInt(trainSize);
-		double[] observation = train.row(index);
+		double[] observation = train.row(index, obsBuf);
 		double[] belief = encoderExperimental.forwardProp(observation);
 		double[] prediction = decoderExperimental.forwardProp(belief);
 		decoderExperimental.backProp(observation);
@@ -127,18 +211,65 @@ public class ObservationModel {
 		encoderExperimental.descendGradient(observation, learningRate);
 		decoderExperimental.descendGradient(belief, learningRate);
 
-		// Since changing the observation function resets the training data for the transition function,
-		// we only want to change our perception when it will lead to big improvements.
-		// Here, we test whether our experimental model is significantly better than the one we have been using.
-		// If so, then the experimental model becomes the new model.
 		trainProgress++;
+		if(incrementalValidation)
+			accumulateValidationError(validationStride());
+		if(trainProgress >= train.rows()) {
+			trainProgress = 0;
+			validateExperimentalModels();
+		}
+	}
+
+
+	/// Performs one minibatch step of gradient descent on batchSize randomly-drawn patterns
+	void doSomeBatchTraining() {
+
+		// Draw the batch
+		if(batchObs == null || batchObs.rows() != batchSize)
+			batchObs = new Matrix(batchSize, train.cols(), true);
+		for(int i = 0; i < batchSize; i++)
+			batchObs.setRow(i, train.row(rand.nextInt(trainSize), obsBuf));
+
+		// Train the decoderExperimental and encoderExperimental together as an autoencoder
+		decoderExperimental.regularize(learningRate * 0.00001 * batchSize);
+		encoderExperimental.regularize(learningRate * 0.00001 * batchSize);
+		Matrix belief = encoderExperimental.forwardPropBatch(batchObs);
+		decoderExperimental.forwardPropBatch(belief);
+		decoderExperimental.backPropBatch(batchObs);
+		encoderExperimental.backPropFromDecoderBatch(decoderExperimental);
+		encoderExperimental.descendGradientBatch(batchObs, learningRate);
+		decoderExperimental.descendGradientBatch(belief, learningRate);
+
+		trainProgress += batchSize;
+		if(incrementalValidation)
+			accumulateValidationError(validationStride() * batchSize);
 		if(trainProgress >= train.rows()) {
-			// Measure mean squared error
 			trainProgress = 0;
-			double err1 = 0.0;
-			double err2 = 0.0;
+			validateExperimentalModels();
+		}
+	}
+
+
+	/// Since changing the observation function resets the training data for the transition function,
+	/// we only want to change our perception when it will lead to big improvements.
+	/// Here, we test whether our experimental model is significantly better than the one we have been using.
+	/// If so, then the experimental model becomes the new model.
+	void validateExperimentalModels() {
+
+		// Measure mean squared error
+		double err1 = 0.0;
+		double err2 = 0.0;
+		if(incrementalValidation) {
+			// Use the error accumulated since the last check (one pass over the validation rows)
+			err1 = Math.sqrt(validationErr1 / validationCount);
+			err2 = Math.sqrt(validationErr2 / validationCount);
+			validationErr1 = 0.0;
+			validationErr2 = 0.0;
+			validationCount = 0;
+		}
+		else {
 			for(int i = 0; i < validationSize; i++) {
-				double[] targ = validation.row(i);
+				double[] targ = validation.row(i, obsBuf);
 				double[] pred1 = decoder.forwardProp(encoder.forwardProp(targ));
 				double[] pred2 = decoderExperimental.forwardProp(encoderExperimental.forwardProp(targ));
 				for(int j = 0; j < targ.length; j++) {
@@ -148,20 +279,45 @@ public class ObservationModel {
 			}
 			err1 = Math.sqrt(err1 / validationSize);
 			err2 = Math.sqrt(err2 / validationSize);
-			if(err2 < 0.85 * err1) {
-				// Update the observation model and reset the training data for the transition function
-				
-				encoder = new NeuralNet(encoderExperimental);
-				decoder = new NeuralNet(decoderExperimental);
-				transitionModel.trainPos = 0;
-				transitionModel.trainSize = 0;
-			}
-			else if(err1 < 0.85 * err2) {
-				// This should really never happen
-				encoderExperimental = new NeuralNet(encoder);
-				decoderExperimental = new NeuralNet(decoder);
-			}
-			//System.out.println("Observation error: " + Double.toString(err1) + ", " + Double.toString(err2));
+		}
+		if(err2 < 0.85 * err1) {
+			// Update the observation model and reset the training data for the transition function
+			// (The weights are copied into the nets we already have, so nothing is allocated.)
+			encoder.copyWeights(encoderExperimental);
+			decoder.copyWeights(decoderExperimental);
+			promotions++;
+			if(transitionModel != null)
+				transitionModel.resetTrainingBuffer();
+		}
+		else if(err1 < 0.85 * err2) {
+			// This should really never happen
+			encoderExperimental.copyWeights(encoder);
+			decoderExperimental.copyWeights(decoder);
+		}
+		//System.out.println("Observation error: " + Double.toString(err1) + ", " + Double.toString(err2));
+	}
+
+
+	/// Returns the number of validation rows to accumulate per training pattern, so that
+	/// every validation row is visited once between two checks
+	int validationStride() {
+		return (validationSize + train.rows() - 1) / train.rows();
+	}
+
+
+	/// Adds the reconstruction errors of the next few validation rows to the running totals
+	void accumulateValidationError(int rows) {
+		for(int k = 0; k < rows && validationSize > 0; k++) {
+			if(validationCursor >= validationSize)
+				validationCursor = 0;
+			double[] targ = validation.row(validationCursor++, obsBuf);
+			double[] pred1 = decoder.forwardProp(encoder.forwardProp(targ));
+			for(int j = 0; j < targ.length; j++)
+				validationErr1 += (targ[j] - pred1[j]) * (targ[j] - pred1[j]);
+			double[] pred2 = decoderExperimental.forwardProp(encoderExperimental.forwardProp(targ));
+			for(int j = 0; j < targ.length; j++)
+				validationErr2 += (targ[j] - pred2[j]) * (targ[j] - pred2[j]);
+			validationCount++;
 		}
 	}
 
@@ -170,38 +326,109 @@ public class ObservationModel {
 	void trainIncremental(double[] observation) {
 
 		// Buffer the pattern
-		double[] dest;
 		if(validationPos < trainPos) {
-			dest = validation.row(validationPos);
+			validation.setRow(validationPos, observation);
 			if(++validationPos >= validation.rows())
 				validationPos = 0;
 			validationSize = Math.max(validationSize, validationPos);
 		} else {
-			dest = train.row(trainPos);
+			train.setRow(trainPos, observation);
 			trainPos++;
 			trainSize = Math.max(trainSize, trainPos);
 			if(trainPos >= train.rows())
 				trainPos = 0;
 		}
-		for(int i = 0; i < dest.length; i++)
-			dest[i] = observation[i];
 
 		// Train
+		if(trainer != null) {
+			trainer.train(observation);
+			return;
+		}
 		int iters = Math.min(trainIters, trainSize);
-		for(int i = 0; i < iters; i++)
-			doSomeTraining();
+		if(batchSize > 1) {
+			for(int i = 0; i < iters; i += batchSize)
+				doSomeBatchTraining();
+		}
+		else {
+			for(int i = 0; i < iters; i++)
+				doSomeTraining();
+		}
 	}
 
 
 	/// Refines the beliefs to correspond with actual observations
 	public void calibrateBeliefs(double[] beliefs, double[] observations) {
+		int iters = calibrationIters;
 		if(tutor != null)
 			Vec.copy(beliefs, tutor.observationsToState(observations));
-		for(int i = 0; i < calibrationIters; i++) {
+		else if(encoderSeedWeight > 0.0) {
+			// Start near the answer, so only a few refinement steps are needed
+			double[] seed = encoder.forwardProp(observations);
+			for(int j = 0; j < beliefs.length; j++)
+				beliefs[j] = encoderSeedWeight * seed[j] + (1.0 - encoderSeedWeight) * beliefs[j];
+			iters = seededCalibrationIters;
+		}
+		if(calibrationTolerance > 0.0 || adaptiveCalibration) {
+			calibrateBeliefsUntilConverged(beliefs, observations, iters);
+			return;
+		}
+		for(int i = 0; i < iters; i++) {
 			decoder.refineInputs(beliefs, observations, learningRate);
 			for(int j = 0; j < beliefs.length; j++)
 				beliefs[j] = Math.max(-1.0, Math.min(1.0, beliefs[j]));
 		}
+		lastCalibrationIters = iters;
+	}
+
+
+	/// Like calibrateBeliefs, but stops early when the reconstruction error stops improving by at least
+	/// calibrationTolerance, and (if adaptiveCalibration is set) adjusts the step size like a bold driver.
+	/// The error of each point falls out of the forward pass that computes its gradient, so checking costs nothing extra.
+	/// Every evaluation counts as an iteration (including ones that overshoot), and the beliefs are left at
+	/// the best point that was evaluated, so a step whose error was never measured is never returned.
+	void calibrateBeliefsUntilConverged(double[] beliefs, double[] observations, int maxIters) {
+		if(calPoint == null || calPoint.length != beliefs.length) {
+			calPoint = new double[beliefs.length];
+			calAccepted = new double[beliefs.length];
+			calStep = new double[beliefs.length];
+		}
+		double[] pred = decoder.layers.get(decoder.layers.size() - 1).activation;
+		double rate = learningRate;
+		double bestErr = Double.MAX_VALUE;
+		int i = 0;
+		while(i < maxIters) {
+			i++;
+			Vec.copy(calPoint, beliefs);
+			decoder.refineInputs(beliefs, observations, rate); // measures the error of calPoint
+			double err = Vec.squaredDistance(pred, observations);
+			if(err > bestErr) {
+				if(!adaptiveCalibration)
+					break;
+
+				// The last step overshot, so go back and take half of it instead
+				rate *= 0.5;
+				for(int j = 0; j < beliefs.length; j++) {
+					calStep[j] *= 0.5;
+					beliefs[j] = Math.max(-1.0, Math.min(1.0, calAccepted[j] + calStep[j]));
+				}
+				continue;
+			}
+			double improvement = bestErr - err;
+			bestErr = err;
+			Vec.copy(calAccepted, calPoint);
+			if(improvement < calibrationTolerance)
+				break;
+			for(int j = 0; j < beliefs.length; j++) {
+				calStep[j] = beliefs[j] - calPoint[j];
+				beliefs[j] = Math.max(-1.0, Math.min(1.0, beliefs[j]));
+			}
+			if(adaptiveCalibration)
+				rate *= 1.1;
+		}
+		if(i > 0)
+			Vec.copy(beliefs, calAccepted);
+		lastCalibrationIters = i;
+		lastCalibrationErr = bestErr;
 	}
 
 
@@ -229,4 +456,192 @@ public class ObservationModel {
 		}
 		return ret;
 	}
+
+
+	/// Checks that calibrating until convergence, with an adaptive step size, reaches at least
+	/// about the same reconstruction error as the full number of iterations, in far fewer of them
+	public static void testCalibration() {
+		Random r = new Random(1234);
+		TransitionModel tm = new TransitionModel(5, 3, 2, 100, 50, false, r);
+		ObservationModel om = new ObservationModel(tm, 8, 3, 2, 2, 100, 50, 500, false, r);
+		double[] obs = new double[8];
+		for(int i = 0; i < 200; i++) {
+			for(int j = 0; j < obs.length; j++)
+				obs[j] = 0.8 * Math.sin(0.1 * i + j);
+			om.trainIncremental(obs);
+		}
+		double errFull = 0.0;
+		double errFast = 0.0;
+		int itersFast = 0;
+		for(int k = 0; k < 50; k++) {
+			double[] start = new double[3];
+			for(int j = 0; j < obs.length; j++)
+				obs[j] = 0.8 * Math.sin(7.0 * r.nextDouble() + j);
+			for(int j = 0; j < start.length; j++)
+				start[j] = r.nextDouble() * 2.0 - 1.0;
+			double[] b = Vec.copy(start);
+			om.calibrationTolerance = 0.0;
+			om.adaptiveCalibration = false;
+			om.calibrateBeliefs(b, obs);
+			if(om.lastCalibrationIters != om.calibrationIters)
+				throw new IllegalArgumentException("failed");
+			double eFull = Vec.squaredDistance(om.decoder.forwardProp(b), obs);
+			errFull += eFull;
+			b = Vec.copy(start);
+			om.calibrationTolerance = 1e-6;
+			om.adaptiveCalibration = true;
+			om.calibrateBeliefs(b, obs);
+			double e = Vec.squaredDistance(om.decoder.forwardProp(b), obs);
+			if(e > om.lastCalibrationErr)
+				throw new IllegalArgumentException("failed"); // it must return the best point it evaluated
+			errFast += e;
+			itersFast += om.lastCalibrationIters;
+
+			// Given the same budget, the adaptive steps must do at least as well as the fixed ones
+			b = Vec.copy(start);
+			om.calibrationTolerance = 0.0;
+			om.calibrateBeliefs(b, obs);
+			e = Vec.squaredDistance(om.decoder.forwardProp(b), obs);
+			if(e > om.lastCalibrationErr || e > eFull || om.lastCalibrationIters != om.calibrationIters)
+				throw new IllegalArgumentException("failed");
+		}
+		if(errFast > errFull * 1.01 || itersFast * 4 > 50 * om.calibrationIters)
+			throw new IllegalArgumentException("failed");
+
+		// Seeding with the encoder starts from its beliefs, and then refines them for a few iterations
+		om.calibrationTolerance = 0.0;
+		om.adaptiveCalibration = false;
+		om.encoderSeedWeight = 1.0;
+		double[] b = new double[3];
+		double[] seed = Vec.copy(om.encoder.forwardProp(obs));
+		double seedErr = Vec.squaredDistance(om.decoder.forwardProp(seed), obs);
+		om.calibrateBeliefs(b, obs);
+		if(om.lastCalibrationIters != om.seededCalibrationIters || Vec.squaredDistance(om.decoder.forwardProp(b), obs) > seedErr)
+			throw new IllegalArgumentException("failed");
+		System.out.println("passed");
+	}
+
+
+	/// Checks that the background trainer promotes its experimental nets, and that the owner
+	/// picks them up (along with a reset of the transition model's training buffer). Promotions that happen
+	/// between two step boundaries are picked up together, as the most recent one.
+	public static void testBackgroundTraining() {
+		Random r = new Random(1234);
+		TransitionModel tm = new TransitionModel(5, 3, 2, 500, 50, false, r);
+		ObservationModel om = new ObservationModel(tm, 8, 3, 2, 2, 100, 50, 500, false, r);
+		om.startBackgroundTraining();
+		double[] obs = new double[8];
+		double[] beliefs = new double[3];
+		double[] actions = new double[2];
+		for(int i = 0; i < 300; i++) {
+			for(int j = 0; j < obs.length; j++)
+				obs[j] = 0.8 * Math.sin(0.1 * i + j);
+			om.syncBackgroundTraining();
+			om.trainIncremental(obs);
+			tm.trainIncremental(beliefs, actions, beliefs);
+		}
+		ObservationTrainer trainer = om.trainer;
+		om.stopBackgroundTraining();
+		if(trainer.thread.isAlive() || om.trainSize != 100 || om.promotions == 0 || om.promotions > trainer.shadow.promotions)
+			throw new IllegalArgumentException("failed");
+		if(tm.trainSize >= 300)
+			throw new IllegalArgumentException("failed");
+
+		// The owner must end up with exactly the nets that the trainer produced
+		NeuralNet[] mine = { om.encoder, om.decoder, om.encoderExperimental, om.decoderExperimental };
+		NeuralNet[] theirs = { trainer.shadow.encoder, trainer.shadow.decoder, trainer.shadow.encoderExperimental, trainer.shadow.decoderExperimental };
+		for(int k = 0; k < mine.length; k++) {
+			if(!mine[k].hasSameWeights(theirs[k]))
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that the incremental accumulators measure the same errors as the full sweep,
+	/// and that they visit every validation row once between two checks
+	public static void testValidation() {
+		for(int p = 0; p < 2; p++) {
+			Random r = new Random(1234);
+			ObservationModel om = new ObservationModel(null, 8, 3, 2, 2, 100, 50, 500, p == 1, r);
+			double[] obs = new double[8];
+			for(int i = 0; i < 150; i++) {
+				for(int j = 0; j < obs.length; j++)
+					obs[j] = 0.8 * Math.sin(0.1 * i + j);
+				om.trainIncremental(obs);
+			}
+			double full = 0.0;
+			for(int i = 0; i < om.validationSize; i++) {
+				double[] targ = om.validation.row(i, om.obsBuf);
+				double[] pred = om.decoderExperimental.forwardProp(om.encoderExperimental.forwardProp(targ));
+				full += Vec.squaredDistance(targ, pred);
+			}
+			om.incrementalValidation = true;
+			om.validationErr2 = 0.0;
+			om.validationCount = 0;
+			om.validationCursor = 0;
+			om.accumulateValidationError(om.validationSize);
+			if(Math.abs(full - om.validationErr2) > 1e-9 * full || om.validationCount != om.validationSize)
+				throw new IllegalArgumentException("failed");
+
+			// Training incrementally accumulates one pass over the validation rows per check
+			om.validationCount = 0;
+			om.trainProgress = 0;
+			int iters = om.train.rows() - 1;
+			for(int i = 0; i < iters; i++)
+				om.doSomeTraining();
+			if(om.validationCount != iters * om.validationStride())
+				throw new IllegalArgumentException("failed");
+			om.doSomeTraining();
+			if(om.validationCount != 0 || om.trainProgress != 0)
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that promoting the experimental nets copies their weights into the nets that are already in use,
+	/// and that doing so allocates nothing
+	public static void testPromotion() {
+		Random r = new Random(1234);
+		TransitionModel tm = new TransitionModel(5, 3, 2, 100, 50, false, r);
+		ObservationModel om = new ObservationModel(tm, 8, 3, 2, 2, 100, 50, 500, false, r);
+		double[] obs = new double[8];
+		double[] beliefs = new double[3];
+		double[] actions = new double[2];
+		for(int i = 0; i < 150; i++) {
+			for(int j = 0; j < obs.length; j++)
+				obs[j] = 0.8 * Math.sin(0.1 * i + j);
+			om.trainIncremental(obs);
+			tm.trainIncremental(beliefs, actions, beliefs);
+		}
+
+		// Spoil the encoder, so the experimental nets are sure to win
+		NeuralNet enc = om.encoder;
+		NeuralNet dec = om.decoder;
+		om.encoder.init(r);
+		int before = om.promotions;
+		om.validateExperimentalModels();
+		if(om.promotions != before + 1 || om.encoder != enc || om.decoder != dec || tm.trainSize != 0)
+			throw new IllegalArgumentException("failed");
+
+		// Promoting again must not allocate anything
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		om.encoder.init(r);
+		long overhead = -mx.getThreadAllocatedBytes(id);
+		overhead += mx.getThreadAllocatedBytes(id);
+		long allocated = -mx.getThreadAllocatedBytes(id);
+		om.validateExperimentalModels();
+		allocated += mx.getThreadAllocatedBytes(id);
+		if(om.promotions != before + 2 || allocated > overhead)
+			throw new IllegalArgumentException("failed: " + allocated + " bytes allocated");
+		NeuralNet[] mine = { om.encoder, om.decoder };
+		NeuralNet[] theirs = { om.encoderExperimental, om.decoderExperimental };
+		for(int k = 0; k < mine.length; k++) {
+			if(mine[k] == theirs[k] || !mine[k].hasSameWeights(theirs[k]))
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
 }
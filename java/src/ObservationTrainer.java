@@ -0,0 +1,116 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/// Trains a private copy of an ObservationModel on a background thread.
+/// The copy trains the experimental autoencoder and runs the validation check. When it promotes
+/// its experimental nets, it publishes them to a pair of snapshot buffers, and the owner picks
+/// them both up together at the next step boundary (which is also when it resets the training
+/// buffer of its transition model). So the agent only ever sees a consistent encoder and decoder.
+class ObservationTrainer implements Runnable {
+	ObservationModel shadow; // the copy that is trained (only touched by the background thread)
+	NeuralNet encoderSnapshot; // the back buffer for the encoder
+	NeuralNet decoderSnapshot; // the back buffer for the decoder
+	boolean promoted; // true if the snapshots hold a promotion that the owner has not picked up yet
+	int pending; // the number of queued observations that have not been processed yet
+	LinkedBlockingQueue<double[]> queue;
+	Thread thread;
+
+	static final double[] STOP = new double[0];
+
+
+	/// Makes a trainer that starts from the current state of owner, and starts its thread.
+	ObservationTrainer(ObservationModel owner) {
+		shadow = new ObservationModel(null, owner.marshal(), new Random(owner.rand.nextLong()));
+		encoderSnapshot = new NeuralNet(owner.encoder);
+		decoderSnapshot = new NeuralNet(owner.decoder);
+		queue = new LinkedBlockingQueue<double[]>();
+		thread = new Thread(this, "ObservationTrainer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/// Queues a command for the background thread
+	synchronized void enqueue(double[] command) {
+		pending++;
+		queue.add(command);
+	}
+
+
+	/// Queues an observation for training. (The vector is copied.)
+	void train(double[] observation) {
+		enqueue(Vec.copy(observation));
+	}
+
+
+	/// If the background thread has promoted its experimental nets since the last call,
+	/// swaps them into owner (both at once), and returns true. Otherwise returns false.
+	synchronized boolean swap(ObservationModel owner) {
+		if(!promoted)
+			return false;
+		NeuralNet e = encoderSnapshot;
+		encoderSnapshot = owner.encoder;
+		owner.encoder = e;
+		NeuralNet d = decoderSnapshot;
+		decoderSnapshot = owner.decoder;
+		owner.decoder = d;
+		promoted = false;
+		return true;
+	}
+
+
+	/// Blocks until every queued observation has been processed
+	synchronized void waitUntilIdle() {
+		while(pending > 0) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+
+	/// Stops the background thread
+	void stop() {
+		enqueue(STOP);
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/// The body of the background thread
+	public void run() {
+		try {
+			while(true) {
+				double[] command = queue.take();
+				if(command == STOP)
+					break;
+				int before = shadow.promotions;
+				shadow.trainIncremental(command);
+				synchronized(this) {
+					if(shadow.promotions != before) {
+						encoderSnapshot.copyWeights(shadow.encoder);
+						decoderSnapshot.copyWeights(shadow.decoder);
+						promoted = true;
+					}
+					pending--;
+					notifyAll();
+				}
+			}
+		} catch(InterruptedException e) {
+		}
+		synchronized(this) {
+			pending = 0;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,273 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Arrays;
+import java.util.Random;
+
+/// Stores a population of plans (sequences of action vectors) in one flat array.
+/// Each plan owns a fixed slab of maxLength steps, which is used as a ring buffer,
+/// so plans can be edited, bred, and advanced in time without allocating anything.
+public class PlanPool
+{
+	int maxLength;
+	int actionDims;
+	double[] actions; // plan p, step t, dim i is at ((p * maxLength + (start[p] + t) % maxLength) * actionDims + i)
+	int[] length; // the number of steps in each plan
+	int[] start; // the slot that holds the first step of each plan
+	int beliefDims; // the size of the cached belief vectors (0 if the prefix cache is disabled)
+	double[] prefixBeliefs; // the anticipated beliefs after plan p, step t are at ((p * maxLength + t) * beliefDims)
+	int[] cachedSteps; // the number of leading steps of each plan whose anticipated beliefs are cached
+
+
+	/// Makes a pool of empty plans
+	PlanPool(int plans, int maxLen, int actionDimensions)
+	{
+		if(maxLen < 1)
+			throw new IllegalArgumentException("plans must be allowed at least one step");
+		maxLength = maxLen;
+		actionDims = actionDimensions;
+		actions = new double[plans * maxLen * actionDimensions];
+		length = new int[plans];
+		start = new int[plans];
+	}
+
+
+	/// Returns the number of plans in this pool
+	int size() { return length.length; }
+
+	/// Returns the number of steps in the specified plan
+	int length(int plan) { return length[plan]; }
+
+	/// Returns the maximum number of steps that any plan may have
+	int maxLength() { return maxLength; }
+
+	/// Enables a cache of the beliefs anticipated after each step of each plan, so a plan that shares
+	/// a prefix with the plan it was bred from only needs to be simulated from the point where it diverges.
+	/// The cache is only meaningful for one starting belief vector and one transition function, so
+	/// whoever owns the pool must call invalidatePrefixes whenever either of those changes.
+	void enablePrefixCache(int beliefDimensions)
+	{
+		if(beliefDims == beliefDimensions && prefixBeliefs != null && cachedSteps.length == size())
+			return;
+		beliefDims = beliefDimensions;
+		prefixBeliefs = new double[size() * maxLength * beliefDims];
+		cachedSteps = new int[size()];
+	}
+
+
+	/// Returns true if the prefix cache is enabled
+	boolean hasPrefixCache() { return cachedSteps != null; }
+
+	/// Returns the number of leading steps of the plan whose anticipated beliefs are cached
+	int cachedSteps(int plan) { return cachedSteps == null ? 0 : cachedSteps[plan]; }
+
+	/// Returns the index in "prefixBeliefs" where the beliefs anticipated after the specified step begin
+	int prefixOffset(int plan, int step) { return (plan * maxLength + step) * beliefDims; }
+
+
+	/// Forgets the cached beliefs of every plan
+	void invalidatePrefixes()
+	{
+		if(cachedSteps != null)
+			Arrays.fill(cachedSteps, 0);
+	}
+
+
+	/// Forgets the cached beliefs of the specified plan from the specified step onward
+	void truncatePrefix(int plan, int step)
+	{
+		if(cachedSteps != null && cachedSteps[plan] > step)
+			cachedSteps[plan] = step;
+	}
+
+
+	/// Records the beliefs anticipated after the specified step. (The steps before it must already be cached.)
+	void cachePrefix(int plan, int step, double[] beliefs, int beliefStart)
+	{
+		System.arraycopy(beliefs, beliefStart, prefixBeliefs, prefixOffset(plan, step), beliefDims);
+		cachedSteps[plan] = step + 1;
+	}
+
+
+	/// Lets the dest plan reuse the cached beliefs of the first "steps" steps of the src plan.
+	/// The caller promises that those steps of the two plans hold the same actions, and that
+	/// src had at least that many steps cached. (dest may be src, if it was just rebuilt from its own prefix.)
+	void inheritPrefix(int dest, int src, int steps)
+	{
+		if(cachedSteps == null)
+			return;
+		steps = Math.min(steps, length[dest]);
+		if(dest != src)
+			System.arraycopy(prefixBeliefs, prefixOffset(src, 0), prefixBeliefs, prefixOffset(dest, 0), steps * beliefDims);
+		cachedSteps[dest] = steps;
+	}
+
+
+	/// Returns the index in "actions" where the specified step begins
+	int offset(int plan, int step)
+	{
+		return (plan * maxLength + (start[plan] + step) % maxLength) * actionDims;
+	}
+
+
+	/// Returns one element of an action vector
+	double get(int plan, int step, int dim)
+	{
+		return actions[offset(plan, step) + dim];
+	}
+
+
+	/// Sets one element of an action vector
+	void set(int plan, int step, int dim, double val)
+	{
+		actions[offset(plan, step) + dim] = val;
+		truncatePrefix(plan, step);
+	}
+
+
+	/// Copies the action vector of the specified step into dest, starting at destStart
+	void copyStep(int plan, int step, double[] dest, int destStart)
+	{
+		System.arraycopy(actions, offset(plan, step), dest, destStart, actionDims);
+	}
+
+
+	/// Opens a new step at the specified position. (The new step holds stale values until it is set.)
+	void insertStep(int plan, int pos)
+	{
+		if(length[plan] >= maxLength)
+			throw new IllegalArgumentException("the plan is already at its maximum length");
+		for(int t = length[plan]; t > pos; t--)
+			System.arraycopy(actions, offset(plan, t - 1), actions, offset(plan, t), actionDims);
+		length[plan]++;
+		truncatePrefix(plan, pos);
+	}
+
+
+	/// Removes the step at the specified position
+	void removeStep(int plan, int pos)
+	{
+		for(int t = pos + 1; t < length[plan]; t++)
+			System.arraycopy(actions, offset(plan, t), actions, offset(plan, t - 1), actionDims);
+		length[plan]--;
+		truncatePrefix(plan, pos);
+	}
+
+
+	/// Moves the first step of the plan to the end. Only one action vector is copied.
+	void rotate(int plan)
+	{
+		if(length[plan] == 0)
+			return;
+		System.arraycopy(actions, offset(plan, 0), actions, offset(plan, length[plan]), actionDims);
+		start[plan] = (start[plan] + 1) % maxLength;
+		truncatePrefix(plan, 0);
+	}
+
+
+	/// Makes the dest plan a copy of the src plan
+	void copy(int dest, int src)
+	{
+		if(dest == src)
+			return;
+		System.arraycopy(actions, src * maxLength * actionDims, actions, dest * maxLength * actionDims, maxLength * actionDims);
+		length[dest] = length[src];
+		start[dest] = start[src];
+		if(cachedSteps != null)
+		{
+			System.arraycopy(prefixBeliefs, prefixOffset(src, 0), prefixBeliefs, prefixOffset(dest, 0), cachedSteps[src] * beliefDims);
+			cachedSteps[dest] = cachedSteps[src];
+		}
+	}
+
+
+	/// Replaces the plan with "steps" action vectors stored contiguously in src
+	void setPlan(int plan, double[] src, int steps)
+	{
+		if(steps > maxLength)
+			throw new IllegalArgumentException("too many steps");
+		System.arraycopy(src, 0, actions, plan * maxLength * actionDims, steps * actionDims);
+		length[plan] = steps;
+		start[plan] = 0;
+		truncatePrefix(plan, 0);
+	}
+
+
+	/// Replaces the plan with the rows of m
+	void setPlan(int plan, Matrix m)
+	{
+		if(m.cols() != actionDims || m.rows() > maxLength)
+			throw new IllegalArgumentException("size mismatch");
+		for(int t = 0; t < m.rows(); t++)
+		{
+			for(int i = 0; i < actionDims; i++)
+				actions[(plan * maxLength + t) * actionDims + i] = m.get(t, i);
+		}
+		length[plan] = m.rows();
+		start[plan] = 0;
+		truncatePrefix(plan, 0);
+	}
+
+
+	/// Materializes the plan as a Matrix with one row per step
+	Matrix toMatrix(int plan)
+	{
+		Matrix m = new Matrix(0, actionDims);
+		for(int t = 0; t < length[plan]; t++)
+			copyStep(plan, t, m.newRow(), 0);
+		return m;
+	}
+
+
+	/// Checks the ring-buffer edits against the same edits applied to a Matrix
+	static void test()
+	{
+		Random r = new Random(1234);
+		PlanPool pool = new PlanPool(2, 5, 2);
+		Matrix m = new Matrix(0, 2);
+		for(int i = 0; i < 2000; i++)
+		{
+			double d = r.nextDouble();
+			if(d < 0.3 && m.rows() < 5)
+			{
+				int pos = r.nextInt(m.rows() + 1);
+				double[] row = m.insertRow(pos);
+				pool.insertStep(0, pos);
+				for(int j = 0; j < 2; j++)
+				{
+					row[j] = r.nextDouble();
+					pool.set(0, pos, j, row[j]);
+				}
+			}
+			else if(d < 0.5 && m.rows() > 1)
+			{
+				int pos = r.nextInt(m.rows());
+				m.removeRow(pos);
+				pool.removeStep(0, pos);
+			}
+			else if(d < 0.9 && m.rows() > 0)
+			{
+				m.takeRow(m.removeRow(0));
+				pool.rotate(0);
+			}
+			else
+			{
+				pool.copy(1, 0);
+				pool.setPlan(0, pool.toMatrix(1));
+			}
+			if(pool.length(0) != m.rows())
+				throw new IllegalArgumentException("failed");
+			for(int t = 0; t < m.rows(); t++)
+			{
+				for(int j = 0; j < 2; j++)
+				{
+					if(pool.get(0, t, j) != m.get(t, j))
+						throw new IllegalArgumentException("failed");
+				}
+			}
+		}
+		System.out.println("passed");
+	}
+}
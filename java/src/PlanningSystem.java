@@ -1,13 +1,24 @@
 import java.util.Random;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+import java.util.concurrent.ThreadFactory;
 
 
 /// A genetic algorithm that sequences actions to form a plan intended to maximize contentment.
 public class PlanningSystem {
 	IAgent self;
 	Matrix randomPlan;
-	public ArrayList<Matrix> plans;
+	public PlanPool plans;
 	TransitionModel transitionModel;
 	ObservationModel observationModel;
 	ContentmentModel contentmentModel;
@@ -20,6 +31,48 @@ public class PlanningSystem {
 	double discountFactor;
 	double explorationRate;
 	Random rand;
+	Matrix finalBeliefs; // one row of anticipated final beliefs per plan (allocated on demand)
+	double[] beliefBuf;
+	double[] contentmentBuf; // the contentment of each row of finalBeliefs
+	double[] fitness; // the cached fitness of each plan (NaN if it needs to be recomputed)
+	double[] fitnessBeliefs; // the beliefs from which the cached fitness values were computed
+	long transitionVersion; // the version of the transition model when the cache was last validated
+	long contentmentVersion; // the version of the contentment model when the cache was last validated
+	int[] staleIndexes; // working space for chooseNextActions
+	public int islands; // the number of sub-populations refined in parallel (1 = sequential refinement)
+	public int migrationEpochs; // the number of times per step that the islands exchange their best plans
+	public int gradientIters; // the number of gradient-ascent steps applied to the best plan each time step (0 = off)
+	public double gradientStepSize;
+	public long refinementBudget; // if > 0, refinePlans runs until this many nanoseconds have passed instead of a fixed number of iterations
+	public int convergencePatience; // if > 0, refinement stops after this many tournaments without an improvement in the best fitness seen
+	public int lastRefinementIters; // the number of refinement iterations that the last call to refinePlans actually ran
+	long deadline; // the time at which the current epoch of refinement must stop (only used if refinementBudget > 0)
+	LongSupplier clock = System::nanoTime; // the source of the time in nanoseconds (replaced by tests)
+	Island mainIsland;
+	InferenceContext[] stepCtx; // one transition context per step of the unrolled rollout (allocated on demand)
+	InferenceContext gradContentCtx;
+	Matrix gradBeliefs; // the beliefs before each step of the rollout
+	double[] gradActions; // the action gradient for each step of the plan
+	double[] bestActions; // the best actions found during gradient refinement
+	double[] gradBelief; // the gradient with respect to the beliefs at one step
+	double[] gradInput; // the gradient with respect to the inputs of the transition model
+	double[] gradOutput; // the gradient with respect to the output of the contentment model
+	ArrayList<Island> islandList;
+	ExecutorService islandPool;
+	boolean memoOpen; // true while chooseNextActions is consulting the mentor
+	int memoCount; // the number of plans in the memo
+	ArrayList<Matrix> memoPlans; // the plans whose rollouts have been memoized this step (compared by identity)
+	ArrayList<double[]> memoBeliefs; // the anticipated final beliefs of each memoized plan
+	ArrayList<double[]> memoObservations; // the decoded final observations of each memoized plan
+	boolean[] memoDecoded; // whether each entry in memoObservations is filled in
+	double[] memoRoot; // the beliefs from which the memoized plans were rolled out
+	long memoVersion; // the version of the transition model when the memo was opened
+	public boolean asyncMentor; // if true, the mentor evaluates each step's plans on another thread, and its feedback is applied when it arrives
+	public int maxPendingFeedback; // the number of batches the mentor may fall behind before the agent stops asking
+	ArrayDeque<MentorBatch> pendingFeedback;
+	public boolean coalesceFeedback; // if true, the mentor's feedback on each step's plans is buffered, and the contentment model trains once per step
+	boolean feedbackBuffered; // true if samples have been buffered since the contentment model last trained
+	ExecutorService mentorPool;
 
 
 	// General-purpose constructor
@@ -31,7 +84,6 @@ public class PlanningSystem {
 		contentmentModel = contentment;
 		mentor = _mentor;
 		rand = r;
-		plans = new ArrayList<Matrix>();
 		if(populationSize < 2)
 			throw new IllegalArgumentException("The population size must be at least 2");
 		refinementIters = populationSize * planRefinementIters;
@@ -40,19 +92,24 @@ public class PlanningSystem {
 		maxPlanLength = maxPlanLen;
 		discountFactor = discount;
 		explorationRate = explore;
+		plans = new PlanPool(populationSize, maxPlanLen, actionDimensions);
 		for(int i = 0; i < populationSize; i++) {
-			Matrix p = new Matrix(0, actionDimensions);
 			for(int j = Math.min(maxPlanLen, rand.nextInt(maxPlanLen) + 2); j > 0; j--) {
 				// Add a random action vector to the end
-				double[] newActions = p.newRow();
+				int t = plans.length(i);
+				plans.insertStep(i, t);
 				for(int k = 0; k < actionDims; k++) {
-					newActions[k] = rand.nextDouble();
+					plans.set(i, t, k, rand.nextDouble());
 				}
 			}
-			plans.add(p);
 		}
 		randomPlan = new Matrix(0, actionDimensions);
 		randomPlan.newRow();
+		initFitnessCache();
+		islands = 1;
+		migrationEpochs = 5;
+		maxPendingFeedback = 4;
+		gradientStepSize = 0.1;
 	}
 
 
@@ -64,20 +121,44 @@ public class PlanningSystem {
 		contentmentModel = contentment;
 		mentor = _mentor;
 		rand = r;
-		Json plansArr = obj.get("plans");
-		plans = new ArrayList<Matrix>();
-		for(int i = 0; i < plansArr.size(); i++)
-		{
-			plans.add(new Matrix(plansArr.get(i)));
-		}
 		maxPlanLength = (int)obj.getLong("maxPlanLength");
 		discountFactor = obj.getDouble("discount");
 		explorationRate = obj.getDouble("explore");
 		refinementIters = (int)obj.getLong("refinementIters");
 		burnIn = (int)obj.getLong("burnIn");
 		actionDims = (int)obj.getLong("actionDims");
+		Json plansArr = obj.get("plans");
+		ArrayList<Matrix> planList = new ArrayList<Matrix>();
+		int longest = maxPlanLength;
+		for(int i = 0; i < plansArr.size(); i++)
+		{
+			Matrix m = new Matrix(plansArr.get(i));
+			planList.add(m);
+			longest = Math.max(longest, m.rows());
+		}
+		plans = new PlanPool(planList.size(), longest, actionDims);
+		for(int i = 0; i < planList.size(); i++)
+			plans.setPlan(i, planList.get(i));
 		randomPlan = new Matrix(0, actionDims);
 		randomPlan.newRow();
+		initFitnessCache();
+		islands = obj.has("islands") ? (int)obj.getLong("islands") : 1;
+		migrationEpochs = obj.has("migrationEpochs") ? (int)obj.getLong("migrationEpochs") : 5;
+		gradientIters = obj.has("gradientIters") ? (int)obj.getLong("gradientIters") : 0;
+		gradientStepSize = obj.has("gradientStepSize") ? obj.getDouble("gradientStepSize") : 0.1;
+		refinementBudget = obj.has("refinementBudget") ? obj.getLong("refinementBudget") : 0;
+		convergencePatience = obj.has("convergencePatience") ? (int)obj.getLong("convergencePatience") : 0;
+		asyncMentor = obj.has("asyncMentor") && obj.getBool("asyncMentor");
+		maxPendingFeedback = obj.has("maxPendingFeedback") ? (int)obj.getLong("maxPendingFeedback") : 4;
+		coalesceFeedback = obj.has("coalesceFeedback") && obj.getBool("coalesceFeedback");
+	}
+
+
+	/// Unmarshals whichever kind of planner the "planner" tag names (the genetic algorithm if there is no tag)
+	static PlanningSystem unmarshal(Json obj, IAgent agent, Random r, TransitionModel transition, ObservationModel observation, ContentmentModel contentment, IMentor _mentor) {
+		if(obj.has("planner") && obj.getString("planner").equals("cem"))
+			return new CemPlanningSystem(obj, agent, r, transition, observation, contentment, _mentor);
+		return new PlanningSystem(obj, agent, r, transition, observation, contentment, _mentor);
 	}
 
 
@@ -87,7 +168,7 @@ public class PlanningSystem {
 		Json plansArr = Json.newList();
 		for(int i = 0; i < plans.size(); i++)
 		{
-			plansArr.add(plans.get(i).marshal());
+			plansArr.add(plans.toMatrix(i).marshal());
 		}
 		obj.add("plans", plansArr);
 		obj.add("maxPlanLength", maxPlanLength);
@@ -96,6 +177,15 @@ public class PlanningSystem {
 		obj.add("refinementIters", refinementIters);
 		obj.add("burnIn", burnIn);
 		obj.add("actionDims", actionDims);
+		obj.add("islands", islands);
+		obj.add("migrationEpochs", migrationEpochs);
+		obj.add("gradientIters", gradientIters);
+		obj.add("gradientStepSize", gradientStepSize);
+		obj.add("refinementBudget", refinementBudget);
+		obj.add("convergencePatience", convergencePatience);
+		obj.add("asyncMentor", asyncMentor);
+		obj.add("maxPendingFeedback", maxPendingFeedback);
+		obj.add("coalesceFeedback", coalesceFeedback);
 		return obj;
 	}
 
@@ -111,46 +201,110 @@ public class PlanningSystem {
 	}
 
 
+	/// Allocates the fitness cache and marks every entry as stale
+	void initFitnessCache() {
+		fitness = new double[plans.size()];
+		invalidateFitness();
+		staleIndexes = new int[plans.size()];
+		plans.enablePrefixCache(transitionModel.beliefDims());
+	}
+
+
+	/// Marks the cached fitness of every plan, and the cached beliefs along every plan, as stale
+	void invalidateFitness() {
+		for(int i = 0; i < fitness.length; i++)
+			fitness[i] = Double.NaN;
+		plans.invalidatePrefixes();
+	}
+
+
+	/// Discards the whole fitness cache if the beliefs or either model has changed since it was filled
+	void validateFitnessCache(double[] beliefs) {
+		if(fitness.length != plans.size())
+			initFitnessCache();
+		boolean same = fitnessBeliefs != null && fitnessBeliefs.length == beliefs.length &&
+			transitionVersion == transitionModel.version && contentmentVersion == contentmentModel.version;
+		for(int i = 0; same && i < beliefs.length; i++) {
+			if(fitnessBeliefs[i] != beliefs[i])
+				same = false;
+		}
+		if(same)
+			return;
+		invalidateFitness();
+		if(fitnessBeliefs == null || fitnessBeliefs.length != beliefs.length)
+			fitnessBeliefs = new double[beliefs.length];
+		Vec.copy(fitnessBeliefs, beliefs);
+		transitionVersion = transitionModel.version;
+		contentmentVersion = contentmentModel.version;
+	}
+
+
+	/// Returns the fitness of the specified plan, evaluating it only if the cached value is stale
+	double fitness(double[] beliefs, int index) {
+		return fitness(mainIsland(), beliefs, index);
+	}
+
+
+	/// Like fitness, but evaluates stale plans with the buffers of the specified island.
+	/// (Islands only call this while refinePlans holds the models still, so the cache is not revalidated.)
+	double fitness(Island isl, double[] beliefs, int index) {
+		if(isl.transitionCtx == null)
+			validateFitnessCache(beliefs);
+		if(Double.isNaN(fitness[index]))
+			fitness[index] = evaluatePlan(isl, beliefs, index);
+		return fitness[index];
+	}
+
+
 	/// Prints a representation of all the plans to stdout
 	void printPlans() {
 		for(int i = 0; i < plans.size(); i++)
-			System.out.println(plans.get(i).toString());
+			System.out.println(plans.toMatrix(i).toString());
 	}
 
 
 	/// Perturbs a random plan
 	void mutate() {
-		double d = rand.nextDouble();
-		Matrix p = plans.get(rand.nextInt(plans.size()));
+		mutate(mainIsland());
+	}
+
+
+	/// Perturbs a random plan in the specified island
+	void mutate(Island isl) {
+		Random r = isl.rand;
+		double d = r.nextDouble();
+		int index = isl.pick();
+		int len = plans.length(index);
+		fitness[index] = Double.NaN;
 		if(d < 0.1) { // lengthen the plan
-			if(p.rows() < maxPlanLength) {
-				double[] newActions = p.insertRow(rand.nextInt(p.rows() + 1));
+			if(len < maxPlanLength) {
+				int t = r.nextInt(len + 1);
+				plans.insertStep(index, t);
 				for(int i = 0; i < actionDims; i++) {
-					newActions[i] = rand.nextDouble();
+					plans.set(index, t, i, r.nextDouble());
 				}
 			}
 		}
 		else if(d < 0.2) { // shorten the plan
-			if(p.rows() > 1) {
-				p.removeRow(rand.nextInt(p.rows()));
+			if(len > 1) {
+				plans.removeStep(index, r.nextInt(len));
 			}
 		}
 		else if(d < 0.7) { // perturb a single element of an action vector
-			double[] actions = p.row(rand.nextInt(p.rows()));
-			int i = rand.nextInt(actions.length);
-				actions[i] = Math.max(0.0, Math.min(1.0, actions[i] + 0.03 * rand.nextGaussian()));
+			int t = r.nextInt(len);
+			int i = r.nextInt(actionDims);
+				plans.set(index, t, i, Math.max(0.0, Math.min(1.0, plans.get(index, t, i) + 0.03 * r.nextGaussian())));
 		}
 		else if(d < 0.9) { // perturb a whole action vector
-			double[] actions = p.row(rand.nextInt(p.rows()));
-			for(int i = 0; i < actions.length; i++) {
-				actions[i] = Math.max(0.0, Math.min(1.0, actions[i] + 0.02 * rand.nextGaussian()));
+			int t = r.nextInt(len);
+			for(int i = 0; i < actionDims; i++) {
+				plans.set(index, t, i, Math.max(0.0, Math.min(1.0, plans.get(index, t, i) + 0.02 * r.nextGaussian())));
 			}
 		}
 		else { // perturb the whole plan
-			for(int j = 0; j < p.rows(); j++) {
-				double[] actions = p.row(j);
-				for(int i = 0; i < actions.length; i++) {
-					actions[i] = Math.max(0.0, Math.min(1.0, actions[i] + 0.01 * rand.nextGaussian()));
+			for(int j = 0; j < len; j++) {
+				for(int i = 0; i < actionDims; i++) {
+					plans.set(index, j, i, Math.max(0.0, Math.min(1.0, plans.get(index, j, i) + 0.01 * r.nextGaussian())));
 				}
 			}
 		}
@@ -159,37 +313,49 @@ public class PlanningSystem {
 
 	/// Replaces the specified plan with a new one.
 	void replace(int childIndex) {
-		double d = rand.nextDouble();
+		replace(mainIsland(), childIndex);
+	}
+
+
+	/// Replaces the specified plan with a new one bred from parents in the same island.
+	/// (The child is assembled in the island's plan buffer, so a parent may also be the child.)
+	void replace(Island isl, int childIndex) {
+		Random r = isl.rand;
+		double d = r.nextDouble();
+		fitness[childIndex] = Double.NaN;
 		if(d < 0.2) {
 			// Clone a random parent (asexual reproduction)
-			plans.set(childIndex, new Matrix(plans.get(rand.nextInt(plans.size()))));
+			int parent = isl.pick();
+			plans.copy(childIndex, parent);
+			fitness[childIndex] = fitness[parent]; // an exact copy has the same fitness
 		} else if(d < 0.7) {
 			// Cross-over (sexual reproduction)
-			Matrix mother = plans.get(rand.nextInt(plans.size()));
-			Matrix father = plans.get(rand.nextInt(plans.size()));
-			int crossOverPoint = rand.nextInt(mother.rows());
-			Matrix child = new Matrix(0, actionDims);
+			int mother = isl.pick();
+			int father = isl.pick();
+			int crossOverPoint = r.nextInt(plans.length(mother));
+			double[] child = isl.planBuf;
 			for(int i = 0; i < crossOverPoint; i++)
-				Vec.copy(child.newRow(), mother.row(i));
-			for(int i = crossOverPoint; i < father.rows(); i++)
-				Vec.copy(child.newRow(), father.row(i));
-			plans.set(childIndex, child);		
+				plans.copyStep(mother, i, child, i * actionDims);
+			for(int i = crossOverPoint; i < plans.length(father); i++)
+				plans.copyStep(father, i, child, i * actionDims);
+			int shared = Math.min(crossOverPoint, plans.cachedSteps(mother));
+			plans.setPlan(childIndex, child, Math.max(crossOverPoint, plans.length(father)));
+			plans.inheritPrefix(childIndex, mother, shared); // the child only needs to be simulated from the cross-over point
 		} else {
 			// Interpolation/extrapolation
-			Matrix mother = plans.get(rand.nextInt(plans.size()));
-			Matrix father = plans.get(rand.nextInt(plans.size()));
-			int len = Math.min(mother.rows(), father.rows());
-			Matrix child = new Matrix(0, actionDims);
-			double alpha = rand.nextDouble() * 2.0;
+			int mother = isl.pick();
+			int father = isl.pick();
+			int len = Math.min(plans.length(mother), plans.length(father));
+			double[] child = isl.planBuf;
+			double alpha = r.nextDouble() * 2.0;
 			for(int i = 0; i < len; i++) {
-				double[] a = mother.row(i);
-				double[] b = father.row(i);
-				double[] c = child.newRow();
-				for(int j = 0; j < c.length; j++) {
-					c[j] = Math.max(0.0, Math.min(1.0, alpha * a[j] + (1.0 - alpha) * b[j]));
+				int a = plans.offset(mother, i);
+				int b = plans.offset(father, i);
+				for(int j = 0; j < actionDims; j++) {
+					child[i * actionDims + j] = Math.max(0.0, Math.min(1.0, alpha * plans.actions[a + j] + (1.0 - alpha) * plans.actions[b + j]));
 				}
 			}
-			plans.set(childIndex, child);
+			plans.setPlan(childIndex, child, len);
 		}
 	}
 
@@ -200,24 +366,44 @@ public class PlanningSystem {
 	}
 
 
+	/// Returns the expected contentment at the end of the specified plan in the pool.
+	/// (This uses the buffers of the specified island, so islands may evaluate plans concurrently.)
+	double evaluatePlan(Island isl, double[] beliefs, int index) {
+		double[] fb = transitionModel.getFinalBeliefs(isl.transitionCtx, beliefs, plans, index, isl.beliefBuf, isl.actionBuf);
+		double c = (isl.contentmentCtx == null ? contentmentModel.evaluate(fb) : contentmentModel.evaluate(isl.contentmentCtx, fb));
+		return c * Math.pow(discountFactor, plans.length(index));
+	}
+
+
 	/// Performs a tournament between two randomly-selected plans.
 	/// One of them, usually the winner, is replaced.
-	void tournament(double[] beliefs) {
-		int a = rand.nextInt(plans.size());
-		int b = rand.nextInt(plans.size());
+	double tournament(double[] beliefs) {
+		return tournament(mainIsland(), beliefs);
+	}
+
+
+	/// Performs a tournament between two randomly-selected plans in the specified island.
+	/// Returns the better fitness of the two, or -infinity if they were not evaluated.
+	double tournament(Island isl, double[] beliefs) {
+		Random r = isl.rand;
+		int a = isl.pick();
+		int b = isl.pick();
 		boolean a_prevails;
-		if(rand.nextDouble() < 0.3)
+		double best = Double.NEGATIVE_INFINITY;
+		if(r.nextDouble() < 0.3)
 			a_prevails = true; // Let a random plan prevail
 		else {
 			// Let the better plan prevail
-			double fitnessA = evaluatePlan(beliefs, plans.get(a));
-			double fitnessB = evaluatePlan(beliefs, plans.get(b));
+			double fitnessA = fitness(isl, beliefs, a);
+			double fitnessB = fitness(isl, beliefs, b);
 			if(fitnessA >= fitnessB)
 				a_prevails = true;
 			else
 				a_prevails = false;
+			best = Math.max(fitnessA, fitnessB);
 		}
-		replace(a_prevails ? b : a);
+		replace(isl, a_prevails ? b : a);
+		return best;
 	}
 
 
@@ -228,27 +414,410 @@ public class PlanningSystem {
 		if(burnIn > 0)
 			return;
 
-		for(int i = 0; i < refinementIters; i++) {
-			double d = rand.nextDouble();
-			if(d < 0.65)
-				mutate();
-			else
-				tournament(beliefs);
+		long startTime = clock.getAsLong();
+		if(islands > 1)
+			refinePlansInIslands(beliefs, startTime);
+		else {
+			Island main = mainIsland();
+			main.beliefs = beliefs;
+			main.startRefining(refinementBudget > 0 ? Integer.MAX_VALUE : refinementIters);
+			deadline = startTime + refinementBudget;
+			main.call();
+			lastRefinementIters = main.done;
+		}
+
+		// Polish the best plan that the genetic algorithm found
+		if(gradientIters > 0 && transitionModel.tutor == null && contentmentModel.tutor == null && !pastDeadline()) {
+			int best = 0;
+			for(int i = 1; i < plans.size(); i++) {
+				if(fitness(beliefs, i) > fitness(beliefs, best))
+					best = i;
+			}
+			refinePlanByGradient(beliefs, best, gradientIters, gradientStepSize);
+		}
+	}
+
+
+	/// Computes the fitness of the specified plan, and the gradient of that fitness with respect to each
+	/// element of each action vector, by backpropagating contentment through the unrolled rollout.
+	/// The gradient of step t, dim i, goes in actionGrad[t * actionDims + i]. Returns the fitness.
+	double planGradient(double[] beliefs, int index, double[] actionGrad) {
+		int len = plans.length(index);
+		int bd = beliefs.length;
+		if(stepCtx == null || gradBeliefs.cols() != bd) {
+			stepCtx = new InferenceContext[plans.maxLength()];
+			for(int t = 0; t < stepCtx.length; t++)
+				stepCtx[t] = transitionModel.model.newContext();
+			gradContentCtx = contentmentModel.model.newContext();
+			gradBeliefs = new Matrix(plans.maxLength() + 1, bd, true);
+			gradBelief = new double[bd];
+			gradInput = new double[bd + actionDims];
+			gradOutput = new double[1];
+		}
+		Island main = mainIsland();
+		double[] b = main.beliefBuf;
+		double[] a = main.actionBuf;
+		double[] g = gradBelief;
+		double[] inGrad = gradInput;
+
+		// Unroll the rollout, keeping the activations of every step in its own context
+		Vec.copy(b, beliefs);
+		for(int t = 0; t < len; t++) {
+			gradBeliefs.setRow(t, b);
+			plans.copyStep(index, t, a, 0);
+			transitionModel.anticipateNextBeliefsInPlace(stepCtx[t], b, a, b);
+		}
+		gradBeliefs.setRow(len, b);
+		double scale = Math.pow(discountFactor, len);
+		double fit = contentmentModel.evaluate(gradContentCtx, b) * scale;
+
+		// Backpropagate the contentment to the final beliefs, then back through every step
+		gradOutput[0] = scale;
+		contentmentModel.model.backPropToInputs(gradContentCtx, gradOutput, g);
+		double[] x = gradBeliefs.data();
+		for(int t = len - 1; t >= 0; t--) {
+			// b[t + 1] = clip(b[t] + 2 * f(b[t], a[t])), so nothing flows back through clipped elements
+			int prev = gradBeliefs.rowStart(t);
+			int next = gradBeliefs.rowStart(t + 1);
+			for(int j = 0; j < bd; j++) {
+				if(x[next + j] <= -1.0 || x[next + j] >= 1.0)
+					g[j] = 0.0;
+			}
+			for(int j = 0; j < bd; j++)
+				b[j] = 2.0 * g[j];
+			transitionModel.model.backPropToInputs(stepCtx[t], b, inGrad);
+			for(int j = 0; j < bd; j++)
+				g[j] += inGrad[j];
+			for(int i = 0; i < actionDims; i++)
+				actionGrad[t * actionDims + i] = inGrad[bd + i];
+		}
+		return fit;
+	}
+
+
+	/// Refines the specified plan by gradient ascent on its fitness, keeping the actions in [0, 1].
+	/// The best version of the plan that was visited is kept, so the fitness never gets worse.
+	void refinePlanByGradient(double[] beliefs, int index, int iters, double stepSize) {
+		int n = plans.length(index) * actionDims;
+		if(gradActions == null) {
+			gradActions = new double[plans.maxLength() * actionDims];
+			bestActions = new double[plans.maxLength() * actionDims];
+		}
+		double bestFitness = fitness(beliefs, index);
+		for(int t = 0; t < plans.length(index); t++)
+			plans.copyStep(index, t, bestActions, t * actionDims);
+		for(int k = 0; k < iters; k++) {
+			double fit = planGradient(beliefs, index, gradActions);
+			if(fit > bestFitness) {
+				bestFitness = fit;
+				for(int t = 0; t < plans.length(index); t++)
+					plans.copyStep(index, t, bestActions, t * actionDims);
+			}
+			for(int t = 0; t < plans.length(index); t++) {
+				for(int i = 0; i < actionDims; i++)
+					plans.set(index, t, i, Math.max(0.0, Math.min(1.0, plans.get(index, t, i) + stepSize * gradActions[t * actionDims + i])));
+			}
+		}
+		double fit = evaluatePlan(mainIsland(), beliefs, index);
+		if(fit < bestFitness)
+			plans.setPlan(index, bestActions, n / actionDims);
+		else
+			bestFitness = fit;
+		fitness[index] = bestFitness;
+	}
+
+
+	/// Returns an island that spans the whole population and uses the main random number generator
+	Island mainIsland() {
+		if(mainIsland == null)
+			mainIsland = new Island(rand, 0, plans.size(), false);
+		mainIsland.hi = plans.size();
+		return mainIsland;
+	}
+
+
+	/// Splits the population into sub-populations that are refined in parallel, one per thread.
+	/// Each island draws from its own random number generator, which is seeded from the main one,
+	/// and only touches its own plans. After each epoch, the best plan in each island replaces the
+	/// worst plan in the next island. So the results depend only on the seed and the number of islands.
+	void refinePlansInIslands(double[] beliefs, long startTime) {
+		if(plans.size() < 2 * islands)
+			throw new IllegalArgumentException("Each island needs at least 2 plans");
+
+		// Set up the islands
+		if(islandList == null || islandList.size() != islands) {
+			if(islandPool != null)
+				islandPool.shutdown();
+			islandList = new ArrayList<Island>();
+			for(int i = 0; i < islands; i++)
+				islandList.add(new Island(new Random(), plans.size() * i / islands, plans.size() * (i + 1) / islands, true));
+			islandPool = Executors.newFixedThreadPool(islands, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread t = new Thread(runnable, "PlanningIsland");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		validateFitnessCache(beliefs);
+		for(int i = 0; i < islands; i++) {
+			Island isl = islandList.get(i);
+			isl.rand.setSeed(rand.nextLong());
+			isl.beliefs = beliefs;
+			isl.startRefining(0);
+		}
+
+		// Evolve the islands in parallel, and migrate between epochs.
+		// (With a budget, each epoch gets an equal share of the time instead of the iterations.)
+		int perIsland = refinementIters / islands;
+		lastRefinementIters = 0;
+		for(int e = 0; e < migrationEpochs; e++) {
+			deadline = startTime + refinementBudget * (e + 1) / migrationEpochs;
+			for(int i = 0; i < islands; i++) {
+				Island isl = islandList.get(i);
+				isl.iters = refinementBudget > 0 ? Integer.MAX_VALUE : perIsland * (e + 1) / migrationEpochs - perIsland * e / migrationEpochs;
+			}
+			try {
+				List<Future<Void>> results = islandPool.invokeAll(islandList);
+				for(int i = 0; i < results.size(); i++)
+					results.get(i).get();
+			} catch(InterruptedException ex) {
+				throw new RuntimeException(ex);
+			} catch(ExecutionException ex) {
+				throw new RuntimeException(ex.getCause());
+			}
+			for(int i = 0; i < islands; i++)
+				lastRefinementIters += islandList.get(i).done;
+			migrate(beliefs);
+		}
+	}
+
+
+	/// Returns true if refinePlans has a budget, and it has been used up
+	boolean pastDeadline() {
+		return refinementBudget > 0 && clock.getAsLong() - deadline >= 0;
+	}
+
+
+	/// Copies the best plan in each island over the worst plan in the next island
+	void migrate(double[] beliefs) {
+		Island main = mainIsland();
+		int[] best = main.bestBuf;
+		int[] worst = main.worstBuf;
+		for(int i = 0; i < islands; i++) {
+			Island isl = islandList.get(i);
+			best[i] = isl.lo;
+			worst[i] = isl.lo;
+			for(int j = isl.lo; j < isl.hi; j++) {
+				double f = fitness(beliefs, j);
+				if(f > fitness[best[i]])
+					best[i] = j;
+				if(f < fitness[worst[i]])
+					worst[i] = j;
+			}
+		}
+
+		// Park the last island's emigrant, then shift the others along the ring from the end,
+		// so every emigrant is read before its island receives an immigrant
+		int last = best[islands - 1];
+		int lastLen = plans.length(last);
+		double lastFitness = fitness[last];
+		for(int t = 0; t < lastLen; t++)
+			plans.copyStep(last, t, main.planBuf, t * actionDims);
+		for(int i = islands - 2; i >= 0; i--) {
+			plans.copy(worst[i + 1], best[i]);
+			fitness[worst[i + 1]] = fitness[best[i]];
+		}
+		plans.setPlan(worst[0], main.planBuf, lastLen);
+		fitness[worst[0]] = lastFitness;
+	}
+
+
+	/// A contiguous range of plans that is refined by one thread, with its own random number generator and buffers
+	class Island implements Callable<Void> {
+		Random rand;
+		int lo; // the first plan in this island
+		int hi; // one past the last plan in this island
+		InferenceContext transitionCtx; // null for the main island, which uses the buffers in the models
+		InferenceContext contentmentCtx;
+		double[] beliefBuf;
+		double[] actionBuf;
+		double[] planBuf; // room to assemble one plan
+		int[] bestBuf; // working space for migrate (only used in the main island)
+		int[] worstBuf;
+		double[] beliefs; // the beliefs from which plans are evaluated
+		int iters; // the maximum number of refinement iterations to perform in the next epoch
+		int done; // the number of refinement iterations performed in the last epoch
+		double bestSeen; // the best fitness seen in a tournament during this call to refinePlans
+		int stale; // the number of tournaments since bestSeen last improved
+
+		Island(Random r, int start, int end, boolean ownBuffers) {
+			rand = r;
+			lo = start;
+			hi = end;
+			if(ownBuffers) {
+				transitionCtx = transitionModel.model.newContext();
+				contentmentCtx = contentmentModel.model.newContext();
+			}
+			beliefBuf = new double[transitionModel.beliefDims()];
+			actionBuf = new double[actionDims];
+			planBuf = new double[plans.maxLength() * actionDims];
+			bestBuf = new int[plans.size()];
+			worstBuf = new int[plans.size()];
+		}
+
+		/// Returns the index of a random plan in this island
+		int pick() {
+			return lo + rand.nextInt(hi - lo);
+		}
+
+		/// Prepares this island for a new call to refinePlans
+		void startRefining(int maxIters) {
+			iters = maxIters;
+			bestSeen = Double.NEGATIVE_INFINITY;
+			stale = 0;
+		}
+
+		/// Refines plans until iters is reached, the deadline passes, or the best fitness stops improving
+		public Void call() {
+			for(done = 0; done < iters; done++) {
+				if(pastDeadline() || (convergencePatience > 0 && stale >= convergencePatience))
+					break;
+				double d = rand.nextDouble();
+				if(d < 0.65)
+					mutate(this);
+				else {
+					double f = tournament(this, beliefs);
+					if(f > bestSeen) {
+						bestSeen = f;
+						stale = 0;
+					}
+					else
+						stale++;
+				}
+			}
+			return null;
 		}
 	}
 
 
 	/// Drops the first action in every plan
 	void advanceTime() {
+		invalidateFitness();
 		for(int i = 0; i < plans.size(); i++) {
-			Matrix p = plans.get(i);
-			if(p.rows() > 0)
-			{
-				// Move the first action vector in each plan to the end
-				double[] tmp = p.removeRow(0);
-				p.takeRow(tmp);
-			}
+			// Move the first action vector in each plan to the end
+			plans.rotate(i);
+		}
+	}
+
+
+	/// Starts a memo of the rollouts performed this step. While it is open, each plan that is
+	/// shown to the mentor is simulated (and decoded) at most once, no matter who asks about it.
+	void openMemo(double[] beliefs) {
+		if(memoPlans == null) {
+			memoPlans = new ArrayList<Matrix>();
+			memoBeliefs = new ArrayList<double[]>();
+			memoObservations = new ArrayList<double[]>();
+			memoDecoded = new boolean[4];
+		}
+		if(memoRoot == null || memoRoot.length != beliefs.length)
+			memoRoot = new double[beliefs.length];
+		Vec.copy(memoRoot, beliefs);
+		memoVersion = transitionModel.version;
+		memoCount = 0;
+		memoOpen = true;
+	}
+
+
+	/// Ends the memo, and lets go of the plans in it
+	void closeMemo() {
+		memoOpen = false;
+		for(int i = 0; i < memoCount; i++)
+			memoPlans.set(i, null);
+		memoCount = 0;
+	}
+
+
+	/// Returns true if the memo is open, and holds rollouts from the specified beliefs with the current transition model
+	boolean memoApplies(double[] beliefs) {
+		if(!memoOpen || memoVersion != transitionModel.version || beliefs.length != memoRoot.length)
+			return false;
+		for(int i = 0; i < beliefs.length; i++) {
+			if(beliefs[i] != memoRoot[i])
+				return false;
 		}
+		return true;
+	}
+
+
+	/// Returns the position of the plan in the memo, or -1 if it is not there, or the memo does not apply
+	int findInMemo(double[] beliefs, Matrix plan) {
+		if(!memoApplies(beliefs))
+			return -1;
+		for(int i = 0; i < memoCount; i++) {
+			if(memoPlans.get(i) == plan)
+				return i;
+		}
+		return -1;
+	}
+
+
+	/// Adds a plan to the memo, and returns a buffer for its final beliefs. (The memo must be open.)
+	double[] addToMemo(Matrix plan) {
+		if(memoCount == memoPlans.size()) {
+			memoPlans.add(null);
+			memoBeliefs.add(new double[memoRoot.length]);
+			memoObservations.add(null);
+		}
+		if(memoCount >= memoDecoded.length) {
+			boolean[] tmp = new boolean[memoDecoded.length * 2];
+			System.arraycopy(memoDecoded, 0, tmp, 0, memoDecoded.length);
+			memoDecoded = tmp;
+		}
+		memoPlans.set(memoCount, plan);
+		memoDecoded[memoCount] = false;
+		return memoBeliefs.get(memoCount++);
+	}
+
+
+	/// Materializes plan "index" of the pool for the mentor. Its final beliefs go in the memo,
+	/// where the prefix cache usually means no further simulation is needed.
+	Matrix memoizePlan(double[] beliefs, int index) {
+		Matrix plan = plans.toMatrix(index);
+		if(memoOpen) {
+			Island main = mainIsland();
+			transitionModel.getFinalBeliefs(null, beliefs, plans, index, addToMemo(plan), main.actionBuf);
+		}
+		return plan;
+	}
+
+
+	/// Returns the anticipated final beliefs for the plan, from the memo if possible.
+	/// (The caller must not modify the returned vector.)
+	double[] anticipateBeliefs(double[] beliefs, Matrix plan) {
+		int i = findInMemo(beliefs, plan);
+		if(i >= 0)
+			return memoBeliefs.get(i);
+		double[] fb = transitionModel.getFinalBeliefs(beliefs, plan);
+		if(!memoApplies(beliefs))
+			return fb;
+		double[] buf = addToMemo(plan);
+		Vec.copy(buf, fb);
+		return buf;
+	}
+
+
+	/// Returns the observations that the agent anticipates at the end of the plan, decoding them at most once per step
+	double[] anticipateObservation(double[] beliefs, Matrix plan) {
+		double[] fb = anticipateBeliefs(beliefs, plan);
+		int i = findInMemo(beliefs, plan);
+		if(i < 0)
+			return observationModel.beliefsToObservations(fb);
+		if(!memoDecoded[i]) {
+			memoObservations.set(i, observationModel.beliefsToObservations(fb));
+			memoDecoded[i] = true;
+		}
+		return Vec.copy(memoObservations.get(i));
 	}
 
 
@@ -259,9 +828,136 @@ public class PlanningSystem {
 			throw new IllegalArgumentException("The mentor returned an evaluation that was out of range.");
 		if(feedback != IMentor.NO_FEEDBACK)
 		{
-			double[] anticipatedBeliefs = transitionModel.getFinalBeliefs(beliefs, plan);
-			contentmentModel.trainIncremental(anticipatedBeliefs, feedback);
+			double[] anticipatedBeliefs = anticipateBeliefs(beliefs, plan);
+			if(coalesceFeedback) {
+				contentmentModel.addSample(anticipatedBeliefs, feedback);
+				feedbackBuffered = true;
+			}
+			else
+				contentmentModel.trainIncremental(anticipatedBeliefs, feedback);
+		}
+	}
+
+
+	/// Trains the contentment model once on all of the feedback that was buffered this step
+	void trainOnBufferedFeedback() {
+		if(feedbackBuffered) {
+			contentmentModel.train();
+			feedbackBuffered = false;
+		}
+	}
+
+
+	/// A batch of plans that the mentor is evaluating on another thread
+	class MentorBatch implements Callable<double[]> {
+		FrozenAgent agent;
+		ArrayList<Matrix> plans;
+		Matrix finalBeliefs; // the anticipated final beliefs of each plan, when it was asked about
+		Future<double[]> feedback;
+
+		public double[] call() {
+			return mentor.evaluatePlans(agent, plans);
+		}
+	}
+
+
+	/// Stops the threads that evaluate islands and ask the mentor (if there are any). A mentor evaluation
+	/// that is already running is allowed to finish, but its feedback is dropped. (Call this before discarding a planner.)
+	void close() {
+		if(islandPool != null)
+			islandPool.shutdown();
+		islandPool = null;
+		islandList = null;
+		if(mentorPool != null)
+			mentorPool.shutdown();
+		mentorPool = null;
+		pendingFeedback = null;
+	}
+
+
+	/// Gives the plans to the mentor to evaluate on another thread. The beliefs and observations
+	/// anticipated for each plan are captured now, so the agent can keep learning while the mentor works.
+	void askMentorLater(double[] beliefs, ArrayList<Matrix> queries) {
+		if(pendingFeedback == null) {
+			pendingFeedback = new ArrayDeque<MentorBatch>();
+			mentorPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread t = new Thread(runnable, "Mentor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		if(pendingFeedback.size() >= maxPendingFeedback)
+			return; // The mentor is falling behind, so don't ask it anything this step
+		MentorBatch batch = new MentorBatch();
+		batch.plans = queries;
+		batch.finalBeliefs = new Matrix(queries.size(), beliefs.length, true);
+		double[][] obs = new double[queries.size()][];
+		for(int i = 0; i < queries.size(); i++) {
+			batch.finalBeliefs.setRow(i, anticipateBeliefs(beliefs, queries.get(i)));
+			obs[i] = anticipateObservation(beliefs, queries.get(i));
+		}
+		batch.agent = new FrozenAgent(self.getName(), queries, obs);
+		batch.feedback = mentorPool.submit(batch);
+		pendingFeedback.add(batch);
+	}
+
+
+	/// Trains the contentment model on all of the mentor's feedback that has arrived, as one batch.
+	/// If wait is true, this first waits for the mentor to finish every pending evaluation.
+	void applyMentorFeedback(boolean wait) {
+		if(pendingFeedback == null)
+			return;
+		boolean any = false;
+		double[] row = null;
+		while(!pendingFeedback.isEmpty() && (wait || pendingFeedback.peek().feedback.isDone())) {
+			MentorBatch batch = pendingFeedback.poll();
+			double[] feedback;
+			try {
+				feedback = batch.feedback.get();
+			} catch(InterruptedException ex) {
+				throw new RuntimeException(ex);
+			} catch(ExecutionException ex) {
+				throw new RuntimeException(ex.getCause());
+			}
+			if(feedback.length != batch.plans.size())
+				throw new IllegalArgumentException("The mentor returned the wrong number of evaluations.");
+			for(int i = 0; i < feedback.length; i++) {
+				if(feedback[i] == IMentor.NO_FEEDBACK)
+					continue;
+				if(feedback[i] < -1.0 || feedback[i] > 1.0)
+					throw new IllegalArgumentException("The mentor returned an evaluation that was out of range.");
+				if(row == null)
+					row = new double[batch.finalBeliefs.cols()];
+				contentmentModel.addSample(batch.finalBeliefs.row(i, row), feedback[i]);
+				any = true;
+			}
+		}
+		if(any)
+			contentmentModel.train();
+	}
+
+
+	/// Evaluates every plan whose cached fitness is stale. They are rolled out together in one batch,
+	/// and their final beliefs are scored together in one batch. (The fitness cache must be valid.)
+	void evaluateStalePlans(double[] beliefs) {
+		if(finalBeliefs == null || finalBeliefs.rows() != plans.size() || finalBeliefs.cols() != beliefs.length) {
+			finalBeliefs = new Matrix(plans.size(), beliefs.length, true);
+			beliefBuf = new double[beliefs.length];
+			contentmentBuf = new double[plans.size()];
+		}
+		int staleCount = 0;
+		for(int i = 0; i < plans.size(); i++) {
+			if(Double.isNaN(fitness[i]))
+				staleIndexes[staleCount++] = i;
 		}
+		if(staleCount == 0)
+			return;
+		transitionModel.getFinalBeliefsBatch(beliefs, plans, staleIndexes, staleCount, finalBeliefs);
+		contentmentModel.evaluateBatch(finalBeliefs, staleCount, contentmentBuf);
+		for(int i = 0; i < staleCount; i++)
+			fitness[staleIndexes[i]] = contentmentBuf[i] * Math.pow(discountFactor, plans.length(staleIndexes[i]));
 	}
 
 
@@ -274,38 +970,336 @@ public class PlanningSystem {
 		}
 
 		// Find the best plan (according to the contentment model) and ask the mentor to evaluate it
+		validateFitnessCache(beliefs);
+		evaluateStalePlans(beliefs);
 		int planBestIndex = 0;
 		double bestContentment = -Double.MAX_VALUE;
 		for(int i = 0; i < plans.size(); i++) {
-			double d = evaluatePlan(beliefs, plans.get(i));
+			double d = fitness[i];
 			if(d > bestContentment) {
 				bestContentment = d;
 				planBestIndex = i;
 			}
 		}
 		//System.out.println("Best contentment: " + Double.toString(bestContentment));
-		Matrix bestPlan = plans.get(planBestIndex);
-		askMentorToEvaluatePlan(beliefs, bestPlan);
+		openMemo(beliefs);
+		if(asyncMentor) {
+			// Ask about the same three plans as below, but all in one batch that is evaluated on another thread
+			ArrayList<Matrix> queries = new ArrayList<Matrix>();
+			queries.add(memoizePlan(beliefs, planBestIndex));
+			int planBindex = rand.nextInt(plans.size() - 1);
+			if(planBindex >= planBestIndex)
+				planBindex++;
+			queries.add(memoizePlan(beliefs, planBindex));
+			double[] action = randomPlan.row(0);
+			for(int i = 0; i < action.length; i++)
+				action[i] = rand.nextDouble();
+			queries.add(new Matrix(randomPlan));
+			askMentorLater(beliefs, queries);
+		}
+		else {
+			askMentorToEvaluatePlan(beliefs, memoizePlan(beliefs, planBestIndex));
 
-		// Pick a random plan from the population and ask the mentor to evaluate it (for contrast)
-		int planBindex = rand.nextInt(plans.size() - 1);
-		if(planBindex >= planBestIndex)
-			planBindex++;
-		askMentorToEvaluatePlan(beliefs, plans.get(planBindex));
+			// Pick a random plan from the population and ask the mentor to evaluate it (for contrast)
+			int planBindex = rand.nextInt(plans.size() - 1);
+			if(planBindex >= planBestIndex)
+				planBindex++;
+			askMentorToEvaluatePlan(beliefs, memoizePlan(beliefs, planBindex));
 
-		// Make a random one-step plan, and ask the mentor to evaluate it (for contrast)
-		double[] action = randomPlan.row(0);
-		for(int i = 0; i < action.length; i++)
-			action[i] = rand.nextDouble();
-		askMentorToEvaluatePlan(beliefs, randomPlan);
+			// Make a random one-step plan, and ask the mentor to evaluate it (for contrast)
+			double[] action = randomPlan.row(0);
+			for(int i = 0; i < action.length; i++)
+				action[i] = rand.nextDouble();
+			askMentorToEvaluatePlan(beliefs, randomPlan);
+			trainOnBufferedFeedback();
+		}
+		closeMemo();
 
 		// Copy the first action vector of the best plan for our chosen action
-		double[] bestActions = bestPlan.row(0);
 		if(burnIn > 0 || rand.nextDouble() < explorationRate)
-			bestActions = randomPlan.row(0);
+			Vec.copy(actions, randomPlan.row(0));
+		else
+			plans.copyStep(planBestIndex, 0, actions, 0);
 		burnIn = Math.max(0, burnIn - 1);
-		for(int i = 0; i < bestActions.length; i++) {
-			actions[i] = bestActions[i];
+	}
+
+
+	/// Returns the mentor that the tests use
+	static IMentor newTestMentor() {
+		return new DriftingPlatformMentor();
+	}
+
+
+	/// Resets agent for a small test world (8 observation dims, 3 belief dims, 2 action dims, and plans of up to
+	/// 10 steps), and lets it think about "steps" random observations. (Set the options to test before calling this.)
+	static AgentManic startTestAgent(AgentManic agent, IMentor mentor, int steps) {
+		agent.reset(mentor, 8, 3, 2, 10);
+		thinkAboutRandomObservations(agent, new Random(0), steps);
+		return agent;
+	}
+
+
+	/// Lets agent think about "steps" observations drawn uniformly from [-1, 1]
+	static void thinkAboutRandomObservations(AgentManic agent, Random r, int steps) {
+		double[] obs = new double[8];
+		for(int i = 0; i < steps; i++) {
+			for(int j = 0; j < obs.length; j++)
+				obs[j] = r.nextDouble() * 2.0 - 1.0;
+			agent.think(obs);
+		}
+	}
+
+
+	/// Checks that every cached fitness value matches a fresh evaluation
+	public static void testFitnessCache() {
+		AgentManic agent = startTestAgent(new AgentManic(new Random(1234)), newTestMentor(), 5);
+		PlanningSystem ps = agent.planningSystem;
+		ps.burnIn = 0;
+		ps.refinePlans(agent.beliefs);
+		int cached = 0;
+		for(int i = 0; i < ps.plans.size(); i++) {
+			if(Double.isNaN(ps.fitness[i]))
+				continue;
+			cached++;
+			if(ps.fitness[i] != ps.evaluatePlan(agent.beliefs, ps.plans.toMatrix(i)))
+				throw new IllegalArgumentException("failed");
+		}
+		if(cached == 0)
+			throw new IllegalArgumentException("failed");
+
+		// Changing a model must invalidate the cache
+		agent.contentmentModel.trainIncremental(agent.beliefs, 0.5);
+		ps.validateFitnessCache(agent.beliefs);
+		for(int i = 0; i < ps.plans.size(); i++) {
+			if(!Double.isNaN(ps.fitness[i]))
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that rollouts that resume from cached prefixes match rollouts from scratch exactly
+	public static void testPrefixCache() {
+		AgentManic agent = startTestAgent(new AgentManic(new Random(1234)), newTestMentor(), 5);
+		PlanningSystem ps = agent.planningSystem;
+		ps.burnIn = 0;
+		Random r = new Random(0);
+		int reused = 0; // the number of edited plans that kept part of their cache
+		for(int k = 0; k < 20; k++) {
+			ps.refinePlans(agent.beliefs);
+			for(int i = 0; i < ps.plans.size(); i++) {
+				if(ps.plans.cachedSteps(i) > 0 && ps.plans.cachedSteps(i) < ps.plans.length(i))
+					reused++;
+				double[] expected = agent.transitionModel.getFinalBeliefs(agent.beliefs, ps.plans.toMatrix(i));
+				double[] actual = agent.transitionModel.getFinalBeliefs(null, agent.beliefs, ps.plans, i, new double[3], new double[2]);
+				if(!Arrays.equals(expected, actual))
+					throw new IllegalArgumentException("failed");
+			}
+
+			// The batched rollout must resume from the cache too
+			for(int i = 0; i < ps.plans.size(); i++)
+				ps.plans.truncatePrefix(i, r.nextInt(ps.plans.maxLength() + 1));
+			Matrix fb = new Matrix(ps.plans.size(), 3, true);
+			int[] all = new int[ps.plans.size()];
+			for(int i = 0; i < all.length; i++)
+				all[i] = i;
+			agent.transitionModel.getFinalBeliefsBatch(agent.beliefs, ps.plans, all, all.length, fb);
+			for(int i = 0; i < ps.plans.size(); i++) {
+				if(!Arrays.equals(fb.row(i, new double[3]), agent.transitionModel.getFinalBeliefs(agent.beliefs, ps.plans.toMatrix(i))))
+					throw new IllegalArgumentException("failed");
+				if(ps.plans.cachedSteps(i) != ps.plans.length(i))
+					throw new IllegalArgumentException("failed");
+			}
+		}
+		if(reused == 0)
+			throw new IllegalArgumentException("failed");
+
+		// Advancing time must invalidate the cache
+		ps.advanceTime();
+		for(int i = 0; i < ps.plans.size(); i++) {
+			if(ps.plans.cachedSteps(i) != 0)
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that refinement stops at the deadline or on convergence, and reports how many iterations it ran
+	public static void testAnytime() {
+		AgentManic agent = startTestAgent(new AgentManic(new Random(1234)), newTestMentor(), 0);
+		PlanningSystem ps = agent.planningSystem;
+		ps.burnIn = 0;
+		ps.refinePlans(agent.beliefs);
+		if(ps.lastRefinementIters != ps.refinementIters)
+			throw new IllegalArgumentException("failed");
+
+		// A budget replaces the iteration count. (The clock ticks 1ms each time it is read,
+		// so a budget of n ms should allow about n iterations, however fast or busy the machine is.)
+		long[] now = new long[1];
+		ps.clock = () -> now[0] += 1000000;
+		ps.refinementBudget = 20000000;
+		ps.refinePlans(agent.beliefs);
+		if(!ps.pastDeadline() || Math.abs(ps.lastRefinementIters - 20) > 2)
+			throw new IllegalArgumentException("failed");
+		ps.refinementBudget = 100000000;
+		ps.refinePlans(agent.beliefs);
+		if(!ps.pastDeadline() || Math.abs(ps.lastRefinementIters - 100) > 2)
+			throw new IllegalArgumentException("failed");
+		ps.clock = System::nanoTime;
+
+		// Convergence ends refinement early, even with time to spare
+		ps.refinementBudget = 0;
+		ps.convergencePatience = 5;
+		ps.refinePlans(agent.beliefs);
+		if(ps.lastRefinementIters < 5 || ps.lastRefinementIters >= ps.refinementIters)
+			throw new IllegalArgumentException("failed");
+		System.out.println("passed");
+	}
+
+
+	/// Checks that the per-step memo returns exactly what a fresh rollout would, and goes stale with the transition model
+	public static void testRolloutMemo() {
+		AgentManic agent = startTestAgent(new AgentManic(new Random(1234)), newTestMentor(), 0);
+		PlanningSystem ps = agent.planningSystem;
+		ps.burnIn = 0;
+		ps.refinePlans(agent.beliefs);
+		TransitionModel tm = agent.transitionModel;
+		ps.openMemo(agent.beliefs);
+		Matrix plan = ps.memoizePlan(agent.beliefs, 0);
+		double[] fb = ps.anticipateBeliefs(agent.beliefs, plan);
+		if(fb != ps.anticipateBeliefs(agent.beliefs, plan) || !Arrays.equals(fb, tm.getFinalBeliefs(agent.beliefs, plan)))
+			throw new IllegalArgumentException("failed");
+		double[] expected = agent.observationModel.beliefsToObservations(tm.getFinalBeliefs(agent.beliefs, plan));
+		if(!Arrays.equals(expected, agent.anticipateObservation(plan)) || !Arrays.equals(expected, agent.anticipateObservation(plan)))
+			throw new IllegalArgumentException("failed");
+		Matrix other = ps.plans.toMatrix(1);
+		double[] fb2 = ps.anticipateBeliefs(agent.beliefs, other);
+		if(fb2 != ps.anticipateBeliefs(agent.beliefs, other) || ps.memoCount != 2)
+			throw new IllegalArgumentException("failed");
+
+		// Training the transition model makes the memo stale
+		tm.trainIncremental(agent.beliefs, agent.actions, agent.beliefs);
+		if(ps.findInMemo(agent.beliefs, plan) != -1)
+			throw new IllegalArgumentException("failed");
+		ps.closeMemo();
+		if(ps.findInMemo(agent.beliefs, plan) != -1)
+			throw new IllegalArgumentException("failed");
+		System.out.println("passed");
+	}
+
+
+	/// Checks that a slow mentor does not hold up think(), and that its feedback is applied when it arrives
+	public static void testAsyncMentor() {
+		final CountDownLatch release = new CountDownLatch(1);
+		final IMentor mentor = newTestMentor();
+		IMentor slowMentor = new IMentor() {
+			public double evaluatePlan(IAgent agent, Matrix plan) {
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return mentor.evaluatePlan(agent, plan);
+			}
+		};
+		AgentManic agent = new AgentManic(new Random(1234));
+		agent.asyncMentor = true;
+		startTestAgent(agent, slowMentor, 6);
+		PlanningSystem ps = agent.planningSystem;
+		if(ps.pendingFeedback.size() != ps.maxPendingFeedback || agent.contentmentModel.trainSize != 0)
+			throw new IllegalArgumentException("failed");
+		release.countDown();
+		ps.applyMentorFeedback(true);
+		if(!ps.pendingFeedback.isEmpty() || agent.contentmentModel.trainSize != 3 * ps.maxPendingFeedback)
+			throw new IllegalArgumentException("failed");
+
+		// Resetting the agent must stop the mentor's thread
+		ExecutorService pool = ps.mentorPool;
+		startTestAgent(agent, slowMentor, 0);
+		if(!pool.isShutdown())
+			throw new IllegalArgumentException("failed");
+		System.out.println("passed");
+	}
+
+
+	/// Checks that coalesced feedback buffers every sample, but only trains once per step
+	public static void testCoalescedFeedback() {
+		for(int p = 0; p < 2; p++) {
+			AgentManic agent = new AgentManic(new Random(1234));
+			agent.coalescedContentmentTraining = true;
+			agent.contentmentBatchSize = (p == 0 ? 1 : 4);
+			startTestAgent(agent, newTestMentor(), 0);
+			ContentmentModel cm = agent.contentmentModel;
+			Random r = new Random(0);
+			for(int i = 0; i < 30; i++) {
+				int size = cm.trainSize;
+				int progress = cm.trainProgress;
+				long version = cm.version;
+				thinkAboutRandomObservations(agent, r, 1);
+				int iters = Math.min(cm.trainIters, cm.trainSize);
+				if(p == 1)
+					iters = (iters + cm.batchSize - 1) / cm.batchSize * cm.batchSize;
+				if(cm.trainSize != size + 3 || cm.version != version + 1 || (cm.trainProgress - progress + 1000) % 1000 != iters % 1000)
+					throw new IllegalArgumentException("failed");
+			}
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that island-model refinement is reproducible for a fixed seed and number of islands
+	public static void testIslands() {
+		String[] results = new String[2];
+		for(int k = 0; k < 2; k++) {
+			AgentManic agent = new AgentManic(new Random(1234));
+			agent.planningIslands = 3;
+			startTestAgent(agent, newTestMentor(), 0);
+			agent.planningSystem.burnIn = 0;
+			thinkAboutRandomObservations(agent, new Random(0), 5);
+			results[k] = agent.marshal().toString();
+
+			// Resetting the agent must stop the island threads
+			ExecutorService pool = agent.planningSystem.islandPool;
+			startTestAgent(agent, newTestMentor(), 0);
+			if(!pool.isShutdown())
+				throw new IllegalArgumentException("failed");
+		}
+		if(!results[0].equals(results[1]))
+			throw new IllegalArgumentException("failed");
+		System.out.println("passed");
+	}
+
+
+	/// Checks the plan gradient against finite differences, and checks that gradient refinement helps
+	public static void testPlanGradient() {
+		AgentManic agent = startTestAgent(new AgentManic(new Random(1234)), newTestMentor(), 5);
+		PlanningSystem ps = agent.planningSystem;
+		double[] beliefs = { 0.1, -0.2, 0.3 };
+		double[] grad = new double[ps.plans.maxLength() * ps.actionDims];
+		int index = 0;
+		double fit = ps.planGradient(beliefs, index, grad);
+		if(fit != ps.evaluatePlan(beliefs, ps.plans.toMatrix(index)))
+			throw new IllegalArgumentException("failed");
+		double h = 1e-6;
+		for(int t = 0; t < ps.plans.length(index); t++) {
+			for(int i = 0; i < ps.actionDims; i++) {
+				double orig = ps.plans.get(index, t, i);
+				ps.plans.set(index, t, i, orig + h);
+				double hi = ps.evaluatePlan(beliefs, ps.plans.toMatrix(index));
+				ps.plans.set(index, t, i, orig - h);
+				double lo = ps.evaluatePlan(beliefs, ps.plans.toMatrix(index));
+				ps.plans.set(index, t, i, orig);
+				double numeric = (hi - lo) / (2.0 * h);
+				if(Math.abs(numeric - grad[t * ps.actionDims + i]) > 1e-5 * Math.max(1.0, Math.abs(numeric)))
+					throw new IllegalArgumentException("failed");
+			}
 		}
+		ps.validateFitnessCache(beliefs);
+		double before = ps.fitness(beliefs, index);
+		ps.refinePlanByGradient(beliefs, index, 20, 0.1);
+		double after = ps.fitness[index];
+		if(after < before || after != ps.evaluatePlan(beliefs, ps.plans.toMatrix(index)))
+			throw new IllegalArgumentException("failed");
+		System.out.println("passed");
 	}
 }
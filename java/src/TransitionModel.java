@@ -1,4 +1,6 @@
 import java.util.Random;
+import java.util.List;
+import java.util.ArrayList;
 
 /// A model that maps from current beliefs and actions to anticipated beliefs.
 /// This model is trained in a supervised manner.
@@ -10,33 +12,46 @@ public class TransitionModel {
 	ITutor tutor;
 	int trainPos;
 	public int trainSize;
+	public long version; // incremented whenever the predictions of this model may have changed
 	int trainIters;
 	int trainProgress;
 	double learningRate;
 	double err;
 	double prevErr;
+	boolean singlePrecision;
+	double[] inBuf;
+	double[] outBuf;
+	public int batchSize; // the number of patterns per training step (1 = incremental training)
+	Matrix batchIn;
+	Matrix batchOut;
+	TransitionTrainer trainer; // non-null when training happens on a background thread
+	InferenceContext rolloutCtx; // buffers for getFinalBeliefsBatch (allocated on demand)
 
 
-	/// General-purpose constructor
-	TransitionModel(int input_dims, int output_dims, int total_layers, int queue_size, int trainItersPerPattern, Random r) {
+	/// General-purpose constructor. If singlePrecision is true, the weights and the training buffers are stored as floats.
+	TransitionModel(int input_dims, int output_dims, int total_layers, int queue_size, int trainItersPerPattern, boolean singlePrecision, Random r) {
 
 		// Init the model
 		rand = r;
 		model = new NeuralNet();
 		int hidden = Math.max(30, output_dims);
-		model.layers.add(new LayerLinear(input_dims, hidden));
+		model.layers.add(new LayerLinear(input_dims, hidden, singlePrecision));
 		model.layers.add(new LayerTanh(hidden));
-		model.layers.add(new LayerLinear(hidden, output_dims));
+		model.layers.add(new LayerLinear(hidden, output_dims, singlePrecision));
 		model.layers.add(new LayerTanh(output_dims));
 		model.init(rand);
 
 		// Init the buffers
-		trainInput = new Matrix(queue_size, input_dims);
-		trainOutput = new Matrix(queue_size, output_dims);
+		this.singlePrecision = singlePrecision;
+		trainInput = new Matrix(queue_size, input_dims, singlePrecision, singlePrecision);
+		trainOutput = new Matrix(queue_size, output_dims, singlePrecision, singlePrecision);
+		inBuf = new double[input_dims];
+		outBuf = new double[output_dims];
 
 		// Init the meta-parameters
 		trainIters = trainItersPerPattern;
 		learningRate = 0.03;
+		batchSize = 1;
 	}
 
 
@@ -44,8 +59,11 @@ public class TransitionModel {
 	TransitionModel(Json obj, Random r) {
 		rand = r;
 		model = new NeuralNet(obj.get("model"));
-		trainInput = new Matrix(obj.get("trainInput"));
-		trainOutput = new Matrix(obj.get("trainOutput"));
+		singlePrecision = obj.has("singlePrecision") && obj.getBool("singlePrecision");
+		trainInput = new Matrix(obj.get("trainInput"), singlePrecision, singlePrecision);
+		trainOutput = new Matrix(obj.get("trainOutput"), singlePrecision, singlePrecision);
+		inBuf = new double[trainInput.cols()];
+		outBuf = new double[trainOutput.cols()];
 		trainPos = (int)obj.getLong("trainPos");
 		trainSize = (int)obj.getLong("trainSize");
 		trainIters = (int)obj.getLong("trainIters");
@@ -53,6 +71,7 @@ public class TransitionModel {
 		learningRate = obj.getDouble("learningRate");
 		err = obj.getDouble("err");
 		prevErr = obj.getDouble("prevErr");
+		batchSize = obj.has("batchSize") ? (int)obj.getLong("batchSize") : 1;
 	}
 
 
@@ -69,6 +88,8 @@ public class TransitionModel {
 		obj.add("learningRate", learningRate);
 		obj.add("err", err);
 		obj.add("prevErr", prevErr);
+		obj.add("singlePrecision", singlePrecision);
+		obj.add("batchSize", batchSize);
 		return obj;
 	}
 
@@ -77,8 +98,57 @@ public class TransitionModel {
 	int actionDims() { return model.layers.get(0).inputCount() - model.layers.get(model.layers.size() - 1).outputCount(); }
 
 
+	/// Returns the number of belief dims
+	int beliefDims() { return model.layers.get(model.layers.size() - 1).outputCount(); }
+
+
 	void setTutor(ITutor t) {
 		tutor = t;
+		version++;
+	}
+
+
+	/// Moves training to a background thread. After this is called, trainIncremental only
+	/// queues the new transition, and the weights used for predictions are only updated
+	/// when syncBackgroundTraining is called. (The results depend on thread timing, so they
+	/// are not reproducible.) The background thread is not part of the marshaled state.
+	void startBackgroundTraining() {
+		if(trainer == null)
+			trainer = new TransitionTrainer(this);
+	}
+
+
+	/// Stops the background thread (if there is one), after it finishes the work already queued,
+	/// and picks up its final weights. Training happens synchronously again after this is called.
+	void stopBackgroundTraining() {
+		if(trainer == null)
+			return;
+		trainer.waitUntilIdle();
+		syncBackgroundTraining();
+		trainer.stop();
+		trainer = null;
+	}
+
+
+	/// Picks up the most recent weights published by the background trainer, if there are any.
+	/// This should be called at step boundaries, while nothing is using the model.
+	void syncBackgroundTraining() {
+		if(trainer != null) {
+			NeuralNet m = trainer.swap(model);
+			if(m != model) {
+				model = m;
+				version++;
+			}
+		}
+	}
+
+
+	/// Forgets all of the buffered training patterns
+	void resetTrainingBuffer() {
+		trainPos = 0;
+		trainSize = 0;
+		if(trainer != null)
+			trainer.enqueue(TransitionTrainer.RESET);
 	}
 
 
@@ -88,8 +158,10 @@ public class TransitionModel {
 		// Present one pattern
 		model.regularize(learningRate * 0.0000001);
 		int index = rand.nextInt(trainSize);
-		model.trainIncremental(trainInput.row(index), trainOutput.row(index), learningRate);
-		err += Vec.squaredDistance(model.layers.get(model.layers.size() - 1).activation, trainOutput.row(index));
+		double[] in = trainInput.row(index, inBuf);
+		double[] out = trainOutput.row(index, outBuf);
+		model.trainIncremental(in, out, learningRate);
+		err += Vec.squaredDistance(model.layers.get(model.layers.size() - 1).activation, out);
 
 		// Measure how we are doing
 		trainProgress++;
@@ -102,12 +174,42 @@ public class TransitionModel {
 	}
 
 
+	/// Performs one minibatch step of gradient descent on batchSize randomly-drawn patterns
+	void doSomeBatchTraining() {
+
+		// Draw the batch
+		if(batchIn == null || batchIn.rows() != batchSize) {
+			batchIn = new Matrix(batchSize, trainInput.cols(), true);
+			batchOut = new Matrix(batchSize, trainOutput.cols(), true);
+		}
+		for(int i = 0; i < batchSize; i++) {
+			int index = rand.nextInt(trainSize);
+			batchIn.setRow(i, trainInput.row(index, inBuf));
+			batchOut.setRow(i, trainOutput.row(index, outBuf));
+		}
+
+		// Present the batch
+		model.regularize(learningRate * 0.0000001 * batchSize);
+		model.trainBatch(batchIn, batchOut, learningRate);
+		err += Vec.squaredDistance(model.layers.get(model.layers.size() - 1).batchActivation.data(), batchOut.data());
+
+		// Measure how we are doing
+		trainProgress += batchSize;
+		if(trainProgress >= trainInput.rows()) {
+			trainProgress = 0;
+			prevErr = Math.sqrt(err / trainInput.rows());
+			err = 0.0;
+		}
+	}
+
+
 	/// Refines this model based on a recently performed action and change in beliefs
 	void trainIncremental(double[] beliefs, double[] actions, double[] nextBeliefs) {
 
 		// Buffer the pattern
-		double[] destIn = trainInput.row(trainPos);
-		double[] destOut = trainOutput.row(trainPos);
+		int dest = trainPos;
+		double[] destIn = trainInput.row(dest, inBuf);
+		double[] destOut = trainOutput.row(dest, outBuf);
 		trainPos++;
 		trainSize = Math.max(trainSize, trainPos);
 		if(trainPos >= trainInput.rows())
@@ -120,18 +222,35 @@ public class TransitionModel {
 			destIn[beliefs.length + i] = actions[i];
 		for(int i = 0; i < destOut.length; i++)
 			destOut[i] = 0.5 * (nextBeliefs[i] - beliefs[i]);
+		trainInput.setRow(dest, destIn);
+		trainOutput.setRow(dest, destOut);
 
 		// Refine the model
+		if(trainer != null) {
+			trainer.train(beliefs, actions, nextBeliefs);
+			return;
+		}
+		version++;
 		int iters = Math.min(trainIters, 1000 * trainSize);
-		for(int i = 0; i < iters; i++)
-			doSomeTraining();
+		if(batchSize > 1) {
+			for(int i = 0; i < iters; i += batchSize)
+				doSomeBatchTraining();
+		}
+		else {
+			for(int i = 0; i < iters; i++)
+				doSomeTraining();
+		}
 	}
 
 
-	/// Predict the belief vector that will result if the specified action is performed
+	/// Predict the belief vector that will result if the specified action is performed.
+	/// beliefs and anticipatedBeliefs may be the same array.
 	public void anticipateNextBeliefsInPlace(double[] beliefs, double[] actions, double[] anticipatedBeliefs) {
-		if(tutor != null)
+		if(tutor != null) {
+			if(anticipatedBeliefs == beliefs)
+				beliefs = Vec.copy(beliefs); // the tutor writes to anticipatedBeliefs before the model reads beliefs
 			tutor.transition(beliefs, actions, anticipatedBeliefs);
+		}
 		double[] pred = model.forwardProp2(beliefs, actions);
 		for(int i = 0; i < pred.length; i++) {
 			anticipatedBeliefs[i] = Math.max(-1.0, Math.min(1.0, beliefs[i] + 2.0 * pred[i]));
@@ -139,6 +258,20 @@ public class TransitionModel {
 	}
 
 
+	/// Like anticipateNextBeliefsInPlace, but uses the buffers in ctx. (Use one context per thread.)
+	public void anticipateNextBeliefsInPlace(InferenceContext ctx, double[] beliefs, double[] actions, double[] anticipatedBeliefs) {
+		if(tutor != null) {
+			if(anticipatedBeliefs == beliefs)
+				beliefs = Vec.copy(beliefs);
+			tutor.transition(beliefs, actions, anticipatedBeliefs);
+		}
+		double[] pred = model.forwardProp2(ctx, beliefs, actions);
+		for(int i = 0; i < pred.length; i++) {
+			anticipatedBeliefs[i] = Math.max(-1.0, Math.min(1.0, beliefs[i] + 2.0 * pred[i]));
+		}
+	}
+
+
 	/// Predict the belief vector that will result if the specified action is performed
 	public double[] anticipateNextBeliefs(double[] beliefs, double[] actions) {
 		double[] anticipatedBeliefs = new double[beliefs.length];
@@ -149,12 +282,259 @@ public class TransitionModel {
 
 	/// Compute the anticipated belief vector that will result if the specified plan is executed.
 	public double[] getFinalBeliefs(double[] beliefs, Matrix plan) {
-		if(plan != null)
+		if(plan != null && plan.rows() > 0)
 		{
+			beliefs = Vec.copy(beliefs);
 			for(int i = 0; i < plan.rows(); i++) {
-				beliefs = anticipateNextBeliefs(beliefs, plan.row(i));
+				anticipateNextBeliefsInPlace(beliefs, plan.row(i), beliefs);
 			}
 		}
 		return beliefs;
 	}
+
+
+	/// Like getFinalBeliefs, but uses the buffers in ctx, and puts the results in out. Returns out.
+	public double[] getFinalBeliefs(InferenceContext ctx, double[] beliefs, Matrix plan, double[] out) {
+		Vec.copy(out, beliefs);
+		if(plan != null)
+		{
+			for(int i = 0; i < plan.rows(); i++) {
+				anticipateNextBeliefsInPlace(ctx, out, plan.row(i), out);
+			}
+		}
+		return out;
+	}
+
+
+	/// Computes the anticipated final beliefs for one plan in a PlanPool, and puts them in out, which is returned.
+	/// actionBuf must have room for one action vector. If ctx is null, the buffers in the model are used.
+	/// If the pool has a prefix cache, the simulation resumes after the last cached step, and caches the rest.
+	public double[] getFinalBeliefs(InferenceContext ctx, double[] beliefs, PlanPool plans, int plan, double[] out, double[] actionBuf) {
+		int cached = plans.cachedSteps(plan);
+		if(cached > 0)
+			System.arraycopy(plans.prefixBeliefs, plans.prefixOffset(plan, cached - 1), out, 0, out.length);
+		else
+			Vec.copy(out, beliefs);
+		for(int i = cached; i < plans.length(plan); i++) {
+			plans.copyStep(plan, i, actionBuf, 0);
+			if(ctx == null)
+				anticipateNextBeliefsInPlace(out, actionBuf, out);
+			else
+				anticipateNextBeliefsInPlace(ctx, out, actionBuf, out);
+			if(plans.hasPrefixCache())
+				plans.cachePrefix(plan, i, out, 0);
+		}
+		return out;
+	}
+
+
+	/// Computes the anticipated final beliefs for the plans in a PlanPool whose indexes are in the first
+	/// "count" elements of planIndexes. Row i of finalBeliefs receives the final beliefs of plan planIndexes[i].
+	/// Like the version that takes a list of plans, this advances them together and does not allocate.
+	/// If the pool has a prefix cache, each plan joins the batch at the first step that is not cached.
+	public void getFinalBeliefsBatch(double[] beliefs, PlanPool plans, int[] planIndexes, int count, Matrix finalBeliefs) {
+		if(rolloutCtx == null)
+			rolloutCtx = model.newContext();
+		InferenceContext ctx = rolloutCtx;
+		int bd = beliefs.length;
+		if(finalBeliefs.cols() != bd || finalBeliefs.rows() < count)
+			throw new IllegalArgumentException("size mismatch");
+		if(tutor != null) {
+			double[] actionBuf = new double[plans.actionDims];
+			double[] buf = new double[bd];
+			for(int i = 0; i < count; i++)
+				finalBeliefs.setRow(i, getFinalBeliefs(null, beliefs, plans, planIndexes[i], buf, actionBuf));
+			return;
+		}
+		ctx.ensureBatchCapacity(count);
+		Matrix in = ctx.batchIn;
+		double[] x = in.data();
+		double[] fb = finalBeliefs.data();
+		int longest = 0;
+		for(int i = 0; i < count; i++) {
+			int p = planIndexes[i];
+			int cached = plans.cachedSteps(p);
+			if(cached > 0)
+				System.arraycopy(plans.prefixBeliefs, plans.prefixOffset(p, cached - 1), fb, finalBeliefs.rowStart(i), bd);
+			else
+				finalBeliefs.setRow(i, beliefs);
+			longest = Math.max(longest, plans.length(p));
+		}
+		for(int t = 0; t < longest; t++) {
+
+			// Stage the current beliefs and next actions of every plan that is running at this step.
+			// (Plans whose cache covers step t join later. The cache grows as the steps are done.)
+			int active = 0;
+			for(int i = 0; i < count; i++) {
+				if(plans.length(planIndexes[i]) <= t || plans.cachedSteps(planIndexes[i]) > t)
+					continue;
+				int s = in.rowStart(active++);
+				System.arraycopy(fb, finalBeliefs.rowStart(i), x, s, bd);
+				plans.copyStep(planIndexes[i], t, x, s + bd);
+			}
+			if(active == 0)
+				continue;
+
+			// Advance them all together
+			Matrix out = model.forwardPropBatch(ctx, in, active);
+			double[] pred = out.data();
+			active = 0;
+			for(int i = 0; i < count; i++) {
+				if(plans.length(planIndexes[i]) <= t || plans.cachedSteps(planIndexes[i]) > t)
+					continue;
+				int ps = out.rowStart(active++);
+				int bs = finalBeliefs.rowStart(i);
+				for(int j = 0; j < bd; j++)
+					fb[bs + j] = Math.max(-1.0, Math.min(1.0, fb[bs + j] + 2.0 * pred[ps + j]));
+				if(plans.hasPrefixCache())
+					plans.cachePrefix(planIndexes[i], t, fb, bs);
+			}
+		}
+	}
+
+
+	/// Computes the anticipated final beliefs for every plan, all starting from the same beliefs.
+	/// Row i of finalBeliefs (a dense matrix with at least plans.size() rows) receives the final
+	/// beliefs for plans.get(i). The plans are advanced together, with one batched forward pass
+	/// per time step, so nothing is allocated in steady state. The results match getFinalBeliefs exactly.
+	public void getFinalBeliefsBatch(double[] beliefs, List<Matrix> plans, Matrix finalBeliefs) {
+		if(rolloutCtx == null)
+			rolloutCtx = model.newContext();
+		getFinalBeliefsBatch(rolloutCtx, beliefs, plans, finalBeliefs);
+	}
+
+
+	/// Like getFinalBeliefsBatch, but uses the buffers in ctx. (Use one context per thread.)
+	public void getFinalBeliefsBatch(InferenceContext ctx, double[] beliefs, List<Matrix> plans, Matrix finalBeliefs) {
+		int n = plans.size();
+		int bd = beliefs.length;
+		if(finalBeliefs.cols() != bd || finalBeliefs.rows() < n)
+			throw new IllegalArgumentException("size mismatch");
+		if(tutor != null) {
+			for(int i = 0; i < n; i++)
+				finalBeliefs.setRow(i, getFinalBeliefs(beliefs, plans.get(i)));
+			return;
+		}
+		for(int i = 0; i < n; i++)
+			finalBeliefs.setRow(i, beliefs);
+		ctx.ensureBatchCapacity(n);
+		Matrix in = ctx.batchIn;
+		double[] x = in.data();
+		double[] fb = finalBeliefs.data();
+		for(int t = 0; ; t++) {
+
+			// Stage the current beliefs and next actions of every plan that is still running
+			int active = 0;
+			for(int i = 0; i < n; i++) {
+				Matrix plan = plans.get(i);
+				if(plan == null || plan.rows() <= t)
+					continue;
+				int s = in.rowStart(active++);
+				System.arraycopy(fb, finalBeliefs.rowStart(i), x, s, bd);
+				for(int j = bd; j < in.cols(); j++)
+					x[s + j] = plan.get(t, j - bd);
+			}
+			if(active == 0)
+				break;
+
+			// Advance them all together
+			Matrix out = model.forwardPropBatch(ctx, in, active);
+			double[] pred = out.data();
+			active = 0;
+			for(int i = 0; i < n; i++) {
+				Matrix plan = plans.get(i);
+				if(plan == null || plan.rows() <= t)
+					continue;
+				int ps = out.rowStart(active++);
+				int bs = finalBeliefs.rowStart(i);
+				for(int j = 0; j < bd; j++)
+					fb[bs + j] = Math.max(-1.0, Math.min(1.0, fb[bs + j] + 2.0 * pred[ps + j]));
+			}
+		}
+	}
+
+
+	/// Checks that the background trainer refines the model and publishes its weights
+	public static void testBackgroundTraining() {
+		Random r = new Random(1234);
+		TransitionModel tm = new TransitionModel(4, 2, 2, 100, 200, false, r);
+		NeuralNet before = new NeuralNet(tm.model);
+		tm.startBackgroundTraining();
+		double[] beliefs = new double[2];
+		double[] actions = new double[2];
+		double[] next = new double[2];
+		for(int i = 0; i < 50; i++) {
+			for(int j = 0; j < 2; j++) {
+				beliefs[j] = 2.0 * r.nextDouble() - 1.0;
+				actions[j] = r.nextDouble();
+				next[j] = Math.max(-1.0, Math.min(1.0, beliefs[j] + 0.2 * (actions[j] - 0.5)));
+			}
+			tm.trainIncremental(beliefs, actions, next);
+			tm.syncBackgroundTraining();
+		}
+		TransitionTrainer trainer = tm.trainer;
+		tm.stopBackgroundTraining();
+		if(trainer.thread.isAlive() || tm.trainSize != 50)
+			throw new IllegalArgumentException("failed");
+
+		// The owner must end up with exactly the weights that the trainer produced
+		for(int i = 0; i < tm.model.layers.size(); i += 2) {
+			LayerLinear a = (LayerLinear)tm.model.layers.get(i);
+			LayerLinear b = (LayerLinear)trainer.shadow.model.layers.get(i);
+			LayerLinear c = (LayerLinear)before.layers.get(i);
+			if(Vec.squaredDistance(a.weights.data(), b.weights.data()) != 0.0 || Vec.squaredDistance(a.bias, b.bias) != 0.0)
+				throw new IllegalArgumentException("failed");
+			if(Vec.squaredDistance(a.weights.data(), c.weights.data()) == 0.0)
+				throw new IllegalArgumentException("failed");
+		}
+		System.out.println("passed");
+	}
+
+
+	/// Checks that batched rollouts match rollouts of one plan at a time exactly
+	public static void testRollout() {
+		for(int p = 0; p < 2; p++) {
+			Random r = new Random(1234);
+			TransitionModel tm = new TransitionModel(5, 3, 2, 100, 200, p == 1, r);
+			ArrayList<Matrix> plans = new ArrayList<Matrix>();
+			for(int i = 0; i < 12; i++) {
+				Matrix plan = new Matrix(0, 2);
+				for(int j = r.nextInt(6); j > 0; j--) {
+					double[] a = plan.newRow();
+					a[0] = r.nextDouble();
+					a[1] = r.nextDouble();
+				}
+				plans.add(plan);
+			}
+			double[] beliefs = { 0.3, -0.2, 0.7 };
+			Matrix fb = new Matrix(plans.size(), 3, true);
+			for(int k = 0; k < 2; k++) { // the second pass reuses the buffers
+				tm.getFinalBeliefsBatch(beliefs, plans, fb);
+				for(int i = 0; i < plans.size(); i++) {
+					double[] expected = tm.getFinalBeliefs(beliefs, plans.get(i));
+					for(int j = 0; j < 3; j++) {
+						if(fb.get(i, j) != expected[j])
+							throw new IllegalArgumentException("failed");
+					}
+				}
+			}
+
+			// With a tutor, the rollouts must still match stepping with separate buffers
+			tm.setTutor(new DriftingPlatformTutor(new DriftingPlatform(r), new DriftingPlatformMentor()));
+			InferenceContext ctx = tm.model.newContext();
+			double[] out = new double[3];
+			for(int i = 0; i < plans.size(); i++) {
+				double[] expected = beliefs;
+				for(int t = 0; t < plans.get(i).rows(); t++)
+					expected = tm.anticipateNextBeliefs(expected, plans.get(i).row(t));
+				double[] b = tm.getFinalBeliefs(beliefs, plans.get(i));
+				tm.getFinalBeliefs(ctx, beliefs, plans.get(i), out);
+				for(int j = 0; j < 3; j++) {
+					if(b[j] != expected[j] || out[j] != expected[j])
+						throw new IllegalArgumentException("failed");
+				}
+			}
+		}
+		System.out.println("passed");
+	}
 }
@@ -0,0 +1,112 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/// Trains a private copy of a TransitionModel on a background thread.
+/// The owner queues each new transition, and picks up the most recently published
+/// weights at step boundaries by swapping its network with the snapshot buffer.
+/// (So think() no longer waits for the training iterations to finish.)
+class TransitionTrainer implements Runnable {
+	TransitionModel shadow; // the copy that is trained (only touched by the background thread)
+	NeuralNet snapshot; // the back buffer, which holds the most recently published weights
+	boolean fresh; // true if the snapshot holds weights that the owner has not picked up yet
+	int pending; // the number of queued commands that have not been processed yet
+	LinkedBlockingQueue<double[][]> queue;
+	Thread thread;
+
+	static final double[][] RESET = new double[0][];
+	static final double[][] STOP = new double[0][];
+
+
+	/// Makes a trainer that starts from the current state of owner, and starts its thread.
+	TransitionTrainer(TransitionModel owner) {
+		shadow = new TransitionModel(owner.marshal(), new Random(owner.rand.nextLong()));
+		snapshot = new NeuralNet(owner.model);
+		queue = new LinkedBlockingQueue<double[][]>();
+		thread = new Thread(this, "TransitionTrainer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/// Queues a command for the background thread
+	synchronized void enqueue(double[][] command) {
+		pending++;
+		queue.add(command);
+	}
+
+
+	/// Queues a transition for training. (The vectors are copied.)
+	void train(double[] beliefs, double[] actions, double[] nextBeliefs) {
+		enqueue(new double[][] { Vec.copy(beliefs), Vec.copy(actions), Vec.copy(nextBeliefs) });
+	}
+
+
+	/// Returns the network the owner should use from now on. If new weights have been
+	/// published, this is the snapshot, and front becomes the back buffer. Otherwise it is front.
+	synchronized NeuralNet swap(NeuralNet front) {
+		if(!fresh)
+			return front;
+		NeuralNet s = snapshot;
+		snapshot = front;
+		fresh = false;
+		return s;
+	}
+
+
+	/// Blocks until every queued command has been processed
+	synchronized void waitUntilIdle() {
+		while(pending > 0) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+
+	/// Stops the background thread
+	void stop() {
+		enqueue(STOP);
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/// The body of the background thread
+	public void run() {
+		try {
+			while(true) {
+				double[][] command = queue.take();
+				if(command == STOP)
+					break;
+				else if(command == RESET)
+					shadow.resetTrainingBuffer();
+				else {
+					shadow.trainIncremental(command[0], command[1], command[2]);
+					synchronized(this) {
+						snapshot.copyWeights(shadow.model);
+						fresh = true;
+					}
+				}
+				synchronized(this) {
+					pending--;
+					notifyAll();
+				}
+			}
+		} catch(InterruptedException e) {
+		}
+		synchronized(this) {
+			pending = 0;
+			notifyAll();
+		}
+	}
+}
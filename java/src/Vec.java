@@ -4,11 +4,36 @@
 // ----------------------------------------------------------------
 
 import java.util.Iterator;
+import java.util.Random;
 import java.lang.StringBuilder;
 
 /// Provides several useful static methods for operating on arrays of doubles
 public class Vec
 {
+	static boolean simd = false;
+	static ISimdKernels kernels; // loaded on demand, because they need the jdk.incubator.vector module
+
+
+	/// Turns the SIMD kernels on or off. Returns true iff they are now in use.
+	/// (The SIMD kernels require VecSimd to have been compiled, and the jdk.incubator.vector module to be
+	/// present at runtime. If either is missing, or the CPU offers no vector lanes for doubles, the scalar kernels remain in use.)
+	public static boolean useSimd(boolean enable)
+	{
+		if(enable && kernels == null && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+		{
+			try
+			{
+				kernels = (ISimdKernels)Class.forName("VecSimd").getDeclaredConstructor().newInstance();
+			}
+			catch(ReflectiveOperationException | LinkageError e)
+			{
+				// VecSimd was not built, so stick with the scalar kernels
+			}
+		}
+		simd = enable && kernels != null && kernels.laneCount() > 1;
+		return simd;
+	}
+
 	public static Json marshal(double[] vec)
 	{
 		Json list = Json.newList();
@@ -101,12 +126,40 @@ public class Vec
 	{
 		if(dest.length != src.length)
 			throw new IllegalArgumentException("mismatching sizes");
+		if(simd)
+		{
+			kernels.addScaled(dest, 0, src, 0, dest.length, scalar);
+			return;
+		}
 		for(int i = 0; i < dest.length; i++)
 		{
 			dest[i] += scalar * src[i];
 		}
 	}
 
+	/// Adds scalar * src[srcStart...srcStart+len) to dest[destStart...destStart+len)
+	public static void addScaled(double[] dest, int destStart, double[] src, int srcStart, int len, double scalar)
+	{
+		if(simd)
+		{
+			kernels.addScaled(dest, destStart, src, srcStart, len, scalar);
+			return;
+		}
+		for(int i = 0; i < len; i++)
+		{
+			dest[destStart + i] += scalar * src[srcStart + i];
+		}
+	}
+
+	/// Adds scalar * src[srcStart...srcStart+len) to dest[destStart...destStart+len)
+	public static void addScaled(float[] dest, int destStart, float[] src, int srcStart, int len, float scalar)
+	{
+		for(int i = 0; i < len; i++)
+		{
+			dest[destStart + i] += scalar * src[srcStart + i];
+		}
+	}
+
 	public static void scale(double[] dest, double scalar)
 	{
 		for(int i = 0; i < dest.length; i++)
@@ -119,16 +172,31 @@ public class Vec
 	{
 		if(a.length != b.length)
 			throw new IllegalArgumentException("mismatching sizes");
+		if(simd)
+			return kernels.dotProduct(a, 0, b, 0, a.length);
 		double d = 0.0;
 		for(int i = 0; i < a.length; i++)
 			d += a[i] * b[i];
 		return d;
 	}
 
+	/// Returns the dot product of a[aStart...aStart+len) with b[bStart...bStart+len)
+	public static double dotProduct(double[] a, int aStart, double[] b, int bStart, int len)
+	{
+		if(simd)
+			return kernels.dotProduct(a, aStart, b, bStart, len);
+		double d = 0.0;
+		for(int i = 0; i < len; i++)
+			d += a[aStart + i] * b[bStart + i];
+		return d;
+	}
+
 	public static double squaredDistance(double[] a, double[] b)
 	{
 		if(a.length != b.length)
 			throw new IllegalArgumentException("mismatching sizes");
+		if(simd)
+			return kernels.squaredDistance(a, 0, b, 0, a.length);
 		double d = 0.0;
 		for(int i = 0; i < a.length; i++)
 		{
@@ -138,6 +206,29 @@ public class Vec
 		return d;
 	}
 
+	/// Returns the dot product of a[aStart...aStart+len) with b[bStart...bStart+len)
+	public static float dotProduct(float[] a, int aStart, float[] b, int bStart, int len)
+	{
+		float d = 0.0f;
+		for(int i = 0; i < len; i++)
+			d += a[aStart + i] * b[bStart + i];
+		return d;
+	}
+
+	/// Returns the squared distance between a[aStart...aStart+len) and b[bStart...bStart+len)
+	public static double squaredDistance(double[] a, int aStart, double[] b, int bStart, int len)
+	{
+		if(simd)
+			return kernels.squaredDistance(a, aStart, b, bStart, len);
+		double d = 0.0;
+		for(int i = 0; i < len; i++)
+		{
+			double t = a[aStart + i] - b[bStart + i];
+			d += t * t;
+		}
+		return d;
+	}
+
 	public static void clip(double[] vec, double min, double max)
 	{
 		if(max < min)
@@ -158,4 +249,79 @@ public class Vec
 		return c;
 	}
 
+
+	/// Checks that the SIMD kernels agree with the scalar ones
+	public static void testSimd()
+	{
+		if(!useSimd(true))
+		{
+			System.out.println("SIMD is not available. (Build with \"make buildsimd\", and run with --add-modules jdk.incubator.vector.)");
+			return;
+		}
+		System.out.println("lanes: " + Integer.toString(kernels.laneCount()));
+		Random r = new Random(1234);
+		for(int len = 0; len < 70; len++)
+		{
+			int aStart = r.nextInt(5);
+			int bStart = r.nextInt(5);
+			double[] a = new double[aStart + len];
+			double[] b = new double[bStart + len];
+			for(int i = 0; i < a.length; i++)
+				a[i] = r.nextGaussian();
+			for(int i = 0; i < b.length; i++)
+				b[i] = r.nextGaussian();
+			double scalar = r.nextGaussian();
+
+			// Element-wise kernels must match exactly
+			double[] d1 = copy(a);
+			double[] d2 = copy(a);
+			useSimd(false);
+			addScaled(d1, aStart, b, bStart, len, scalar);
+			double dot1 = dotProduct(a, aStart, b, bStart, len);
+			double dist1 = squaredDistance(a, aStart, b, bStart, len);
+			useSimd(true);
+			addScaled(d2, aStart, b, bStart, len, scalar);
+			double dot2 = dotProduct(a, aStart, b, bStart, len);
+			double dist2 = squaredDistance(a, aStart, b, bStart, len);
+			for(int i = 0; i < d1.length; i++)
+			{
+				if(d1[i] != d2[i])
+					throw new IllegalArgumentException("addScaled failed");
+			}
+
+			// Reductions may differ in the order of summation
+			if(Math.abs(dot1 - dot2) > 1e-12 * (1.0 + Math.abs(dot1)))
+				throw new IllegalArgumentException("dotProduct failed");
+			if(Math.abs(dist1 - dist2) > 1e-12 * (1.0 + dist1))
+				throw new IllegalArgumentException("squaredDistance failed");
+		}
+
+		// Compare a whole network
+		NeuralNet nn = new NeuralNet();
+		nn.layers.add(new LayerLinear(37, 45));
+		nn.layers.add(new LayerTanh(45));
+		nn.layers.add(new LayerLinear(45, 13));
+		nn.layers.add(new LayerTanh(13));
+		nn.init(r);
+		NeuralNet nn2 = new NeuralNet(nn);
+		double[] in = new double[37];
+		double[] targ = new double[13];
+		for(int i = 0; i < in.length; i++)
+			in[i] = r.nextGaussian();
+		for(int i = 0; i < targ.length; i++)
+			targ[i] = 0.5 * r.nextGaussian();
+		for(int i = 0; i < 100; i++)
+		{
+			useSimd(false);
+			nn.trainIncremental(in, targ, 0.01);
+			useSimd(true);
+			nn2.trainIncremental(in, targ, 0.01);
+		}
+		useSimd(false);
+		double[] out1 = copy(nn.forwardProp(in));
+		double[] out2 = copy(nn2.forwardProp(in));
+		if(squaredDistance(out1, out2) > 1e-20)
+			throw new IllegalArgumentException("network parity failed");
+		System.out.println("passed");
+	}
 }
@@ -0,0 +1,79 @@
+// ----------------------------------------------------------------
+// The contents of this file are distributed under the CC0 license.
+// See http://creativecommons.org/publicdomain/zero/1.0/
+// ----------------------------------------------------------------
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/// SIMD versions of the hot loops in Vec, built on the (incubating) Java Vector API.
+/// The lane width is chosen at runtime by the JVM to match the host CPU.
+/// Vec only loads this class (by name) when Vec.useSimd(true) is called, so the rest of the program
+/// compiles and runs without "--add-modules jdk.incubator.vector". To build it, compile this file
+/// explicitly with that option (see "make buildsimd").
+class VecSimd implements ISimdKernels
+{
+	static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+
+	/// Returns the number of doubles processed per SIMD instruction
+	public int laneCount()
+	{
+		return SPECIES.length();
+	}
+
+
+	public void addScaled(double[] dest, int destStart, double[] src, int srcStart, int len, double scalar)
+	{
+		int i = 0;
+		int bound = SPECIES.loopBound(len);
+		DoubleVector s = DoubleVector.broadcast(SPECIES, scalar);
+		for(; i < bound; i += SPECIES.length())
+		{
+			DoubleVector d = DoubleVector.fromArray(SPECIES, dest, destStart + i);
+			DoubleVector v = DoubleVector.fromArray(SPECIES, src, srcStart + i);
+			d.add(v.mul(s)).intoArray(dest, destStart + i);
+		}
+		for(; i < len; i++)
+			dest[destStart + i] += scalar * src[srcStart + i];
+	}
+
+
+	public double dotProduct(double[] a, int aStart, double[] b, int bStart, int len)
+	{
+		int i = 0;
+		int bound = SPECIES.loopBound(len);
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		for(; i < bound; i += SPECIES.length())
+		{
+			DoubleVector va = DoubleVector.fromArray(SPECIES, a, aStart + i);
+			DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bStart + i);
+			acc = acc.add(va.mul(vb));
+		}
+		double d = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < len; i++)
+			d += a[aStart + i] * b[bStart + i];
+		return d;
+	}
+
+
+	public double squaredDistance(double[] a, int aStart, double[] b, int bStart, int len)
+	{
+		int i = 0;
+		int bound = SPECIES.loopBound(len);
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		for(; i < bound; i += SPECIES.length())
+		{
+			DoubleVector t = DoubleVector.fromArray(SPECIES, a, aStart + i).sub(DoubleVector.fromArray(SPECIES, b, bStart + i));
+			acc = acc.add(t.mul(t));
+		}
+		double d = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < len; i++)
+		{
+			double t = a[aStart + i] - b[bStart + i];
+			d += t * t;
+		}
+		return d;
+	}
+}